@@ -22,11 +22,22 @@
 
 package dk.sdu.mmmi.modular.luaj4bukkit;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.bukkit.event.Event;
 import org.bukkit.event.EventException;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockEvent;
+import org.bukkit.event.player.PlayerEvent;
 import org.bukkit.plugin.EventExecutor;
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
 
@@ -42,6 +53,16 @@ public class GameEventHandler implements Listener {
 	 */
 	private LuaJ4BukkitPlugin plugin;
 	
+	/**
+	 * Handlers receiving their events in batches, delivered once per tick
+	 */
+	private List<Batch> batches = new CopyOnWriteArrayList<Batch>();
+	
+	/**
+	 * Id of the repeating task delivering the batches, or -1 when there is no batched handler
+	 */
+	private int taskId = -1;
+	
 	/**
 	 * Create event handler for given lua environment
 	 * @param env the environment
@@ -53,14 +74,151 @@ public class GameEventHandler implements Listener {
 	/**
 	 * Register an event to a given dispatcher
 	 * @param eventType the type of the event
-	 * @param handler lua closure that will be called with one argument, the event, whenever an event is dispatched
+	 * @param handler lua closure that will be called with one argument, the event, whenever an event is dispatched;
+	 * it is called in the virtual machine state that registers it, and stopped with an error if it runs longer than the tick budget
 	 */
 	public void register(Class<? extends Event> eventType, final LuaValue handler) {
+		final LuaState state = LuaState.current();
+		final long budget = plugin.getConfig_tick_budget();
+		final boolean reuse = plugin.isConfig_reuse_event_userdata();
+		// userdata of the previous event, available for reuse while no dispatch is using it
+		final AtomicReference<LuaValue> idle = new AtomicReference<LuaValue>();
 		plugin.getServer().getPluginManager().registerEvent(eventType, this, EventPriority.NORMAL, new EventExecutor() {
 			@Override
 			public void execute(Listener listener, Event event) throws EventException {
-				handler.call(CoerceJavaToLua.coerce(event));
+				LuaValue userdata = reuse ? CoerceJavaToLua.coerce(event, idle.getAndSet(null)) : CoerceJavaToLua.coerce(event);
+				try {
+					dispatch(state, handler, userdata, budget);
+				} finally {
+					if(reuse) idle.set(userdata);
+				}
 			}
 		}, plugin);
 	}
+
+	/**
+	 * Call a handler in its virtual machine state, stopping it with an error if it runs longer than the budget.
+	 * Events may fire on any thread, including the threads of asynchronous events such as chat, 
+	 * while a state may only execute on one thread at a time, so the state is locked while the handler runs.
+	 * An event fired by code already executing in the state on this thread, 
+	 * such as a scheduled script's coroutine, is handled directly, as the code firing it holds the state.
+	 * @param state the state the handler was registered in
+	 * @param handler the handler
+	 * @param arg the argument to call it with
+	 * @param budget nanoseconds the handler may run, or 0 for no limit
+	 */
+	static void dispatch(LuaState state, LuaValue handler, LuaValue arg, long budget) {
+		if(LuaState.current()==state) {
+			call(state, handler, arg, budget);
+		} else {
+			synchronized(state) {
+				call(state, handler, arg, budget);
+			}
+		}
+	}
+
+	private static void call(LuaState state, LuaValue handler, LuaValue arg, long budget) {
+		LuaState prior = state.enter();
+		boolean limited = budget>0 && state.beginSlice(null, budget);
+		try {
+			handler.call(arg);
+		} finally {
+			if(limited) state.endSlice();
+			prior.enter();
+		}
+	}
+
+	/**
+	 * Register an event to a given dispatcher, delivering the events once per server tick as a batch
+	 * @param eventType the type of the event
+	 * @param handler lua closure that will be called with one argument, a table holding the events of 
+	 * the last tick in the order they happened; it is only called for ticks that had events, 
+	 * in the virtual machine state that registers it
+	 * @param coalesce if true, only the latest event of each player (for player events) 
+	 * or block (for block events) is kept in a batch, so for example a player moving
+	 * many times in a tick gives only the last move
+	 */
+	public void registerBatch(Class<? extends Event> eventType, LuaValue handler, boolean coalesce) {
+		final Batch batch = new Batch(LuaState.current(), handler, coalesce, plugin.getConfig_tick_budget());
+		plugin.getServer().getPluginManager().registerEvent(eventType, this, EventPriority.MONITOR, new EventExecutor() {
+			@Override
+			public void execute(Listener listener, Event event) throws EventException {
+				batch.add(event);
+			}
+		}, plugin);
+		synchronized(this) {
+			batches.add(batch);
+			if(taskId==-1) {
+				// one task delivers the batches of all handlers every tick
+				taskId = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+					@Override
+					public void run() {
+						for(Batch b: batches) b.deliver();
+					}
+				}, 1L, 1L);
+			}
+		}
+	}
+
+	/**
+	 * Stop delivering batched events: cancel the task delivering them and drop the batches and their pending events.
+	 * Bukkit listeners are unregistered separately, together with the rest of the plugin's listeners.
+	 */
+	public synchronized void unregisterBatches() {
+		if(taskId!=-1) {
+			plugin.getServer().getScheduler().cancelTask(taskId);
+			taskId = -1;
+		}
+		batches.clear();
+	}
+	
+	/**
+	 * Events queued for one batched handler.
+	 * Events may arrive on any thread, but are only delivered on the main server thread.
+	 * Since the handler runs after the events have completed, it cannot cancel or change them.
+	 */
+	private static class Batch {
+		private final LuaState state;
+		private final LuaValue handler;
+		private final boolean coalesce;
+		private final long budget;
+		/**
+		 * Queued events, keyed by the player or block they concern when coalescing, otherwise by themselves
+		 */
+		private Map<Object,Event> pending = new LinkedHashMap<Object,Event>();
+		
+		Batch(LuaState state, LuaValue handler, boolean coalesce, long budget) {
+			this.state = state;
+			this.handler = handler;
+			this.coalesce = coalesce;
+			this.budget = budget;
+		}
+		
+		synchronized void add(Event event) {
+			Object key = event;
+			if(coalesce) {
+				if(event instanceof PlayerEvent) key = ((PlayerEvent)event).getPlayer();
+				else if(event instanceof BlockEvent) key = ((BlockEvent)event).getBlock();
+				// keep the order of the latest events
+				pending.remove(key);
+			}
+			pending.put(key, event);
+		}
+		
+		private synchronized List<Event> take() {
+			if(pending.isEmpty()) return null;
+			List<Event> events = new ArrayList<Event>(pending.values());
+			pending.clear();
+			return events;
+		}
+		
+		void deliver() {
+			List<Event> events = take();
+			if(events==null) return;
+			LuaTable table = new LuaTable(events.size(), 0);
+			for(int i=0; i<events.size(); i++)
+				table.rawset(i+1, CoerceJavaToLua.coerce(events.get(i)));
+			dispatch(state, handler, table, budget);
+		}
+	}
 }
@@ -27,6 +27,8 @@ import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.luaj.vm2.LuaValue;
 
+import dk.sdu.mmmi.modular.luaj4bukkit.ScriptScheduler.Script;
+
 /**
  * Interactive prompt interfacing minecraft to a lua environment
  * @author ups
@@ -107,4 +109,23 @@ public class InteractivePrompt {
 		};
 	}
 
+	/**
+	 * "lua.tasks" command: list the scheduled scripts that are still running, with the time they have used
+	 * @return true
+	 */
+	public CommandExecutor getProcessorFor_lua_tasks() {
+		return new CommandExecutor() {
+			public boolean onCommand(CommandSender sender, Command cmd, String commandLabel, String[] args) {
+				ScriptScheduler scheduler = plugin.getScheduler();
+				if(scheduler==null) {
+					luaEnvironment.displayMessage(sender, "scripts are not scheduled");
+					return true;
+				}
+				for(Script script: scheduler.getScripts())
+					luaEnvironment.displayMessage(sender, script.getName()+": "+script.getCpuTime()/1000000+" ms");
+				return true;
+			}
+		};
+	}
+
 }
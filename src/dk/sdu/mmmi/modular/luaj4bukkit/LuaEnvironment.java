@@ -23,16 +23,22 @@
 package dk.sdu.mmmi.modular.luaj4bukkit;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
+import org.bukkit.Location;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.AsyncIoLib;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.lib.jse.UserdataCache;
 
 /**
  * The collective lua environment: global and per-player, with a means of looking up a specific
@@ -52,6 +58,16 @@ public class LuaEnvironment {
 	 */
 	private Map<Player,LuaValue> playerEnvironments = new HashMap<Player,LuaValue>();
 	
+	/**
+	 * Virtual machine state of each environment, so that environments do not share a call stack
+	 */
+	private Map<LuaValue,LuaState> states = new IdentityHashMap<LuaValue,LuaState>();
+	
+	/**
+	 * Userdata already handed out for the server, players and worlds, so they are not wrapped again on every command
+	 */
+	private UserdataCache userdata = new UserdataCache();
+	
 	/**
 	 * Owner plugin
 	 */
@@ -74,7 +90,31 @@ public class LuaEnvironment {
 	 * @return the newly initialized environment
 	 */
 	private LuaValue createLuaEnvironment(CommandSender sender) {
-		LuaValue env = JsePlatform.standardGlobals();
+		LuaState state = new LuaState();
+		// the startup file may register handlers for asynchronous events, which lock the state
+		synchronized(state) {
+			LuaState prior = state.enter();
+			try {
+				LuaValue env = initializeLuaEnvironment(sender);
+				synchronized(states) {
+					states.put(env, state);
+				}
+				return env;
+			} finally {
+				prior.enter();
+			}
+		}
+	}
+
+	/**
+	 * Initialize a lua environment in the virtual machine state entered by the current thread
+	 * @param sender where to report errors
+	 * @return the newly initialized environment
+	 */
+	private LuaValue initializeLuaEnvironment(CommandSender sender) {
+		LuaValue env = JsePlatform.standardGlobals(plugin.getConfig_coroutine_mode());
+		// file io off the main thread for scripts run by the scheduler
+		env.load(new AsyncIoLib());
 		if(plugin.isConfig_load_internal()) {
 			String className = plugin.getConfig_internal_defs();
 			Class<LuaValue> internal;
@@ -90,11 +130,31 @@ public class LuaEnvironment {
 				throw new Error("Internally loaded class cannot be instantiated, default constructor not accessible");
 			}
 		}
-		if(plugin.isConfig_load_startup())
-			evaluateCommandsFromFile(sender, env, plugin.getConfig_startup_file());
+		if(plugin.isConfig_load_startup()) {
+			// run directly, so the environment is complete before it is used
+			try {
+				env.get("dofile").call(LuaValue.valueOf(plugin.getConfig_path_prefix()+plugin.getConfig_startup_file()));
+			} catch(LuaError error) {
+				reportError(sender,error.getMessage());
+			}
+		}
 		return env;
 	}
 
+	/**
+	 * Get the virtual machine state of an environment, which must be locked while it is entered
+	 * since event handlers of the environment may run on other threads (see {@link GameEventHandler#dispatch})
+	 * @param env the environment about to be used
+	 * @return the state of the environment, or the current state if the environment has none
+	 */
+	public LuaState getState(LuaValue env) {
+		LuaState state;
+		synchronized(states) {
+			state = states.get(env);
+		}
+		return state!=null ? state : LuaState.current();
+	}
+
 	/**
 	 * Get the environment to use for a given command sender
 	 * @param sender the command sender
@@ -107,7 +167,7 @@ public class LuaEnvironment {
 			env = getPlayerEnvironment((Player)sender);
 		} else {
 			env = globalEnvironment;
-			globalEnvironment.set("server", CoerceJavaToLua.coerce(sender.getServer()));
+			globalEnvironment.set("server", userdata.coerce(sender.getServer()));
 		}
 		return env;
 	}
@@ -123,11 +183,12 @@ public class LuaEnvironment {
 		if(env==null) {
 			// Not created yet for this player, create and save
 			env = createLuaEnvironment(sender);
-			env.set("player", CoerceJavaToLua.coerce(sender));
+			env.set("player", userdata.coerce(sender));
 			playerEnvironments.put(sender,env);
 		}
-		env.set("location", CoerceJavaToLua.coerce(sender.getLocation()));
-		env.set("world", CoerceJavaToLua.coerce(sender.getLocation().getWorld()));
+		Location location = sender.getLocation();
+		env.set("location", CoerceJavaToLua.coerce(location));
+		env.set("world", userdata.coerce(location.getWorld()));
 		return env;
 	}
 
@@ -138,15 +199,20 @@ public class LuaEnvironment {
 	 * @param command the textual representation of the command
 	 */
 	public void evaluateSingleCommand(CommandSender sender, LuaValue env, String completeCommand) {
-		try {
-			LuaValue closure = env.get("loadstring").call(LuaValue.valueOf(completeCommand));
-			if(closure.isnil())
-				reportError(sender,"Error parsing lua command");
-			else {
-				LuaValue result = closure.call();
+		LuaState state = getState(env);
+		synchronized(state) {
+			LuaState prior = state.enter();
+			try {
+				LuaValue closure = env.get("loadstring").call(LuaValue.valueOf(completeCommand));
+				if(closure.isnil())
+					reportError(sender,"Error parsing lua command");
+				else
+					run(sender, env, completeCommand, closure, LuaValue.NONE);
+			} catch(LuaError error) {
+				reportError(sender,error.getMessage());
+			} finally {
+				prior.enter();
 			}
-		} catch(LuaError error) {
-			reportError(sender,error.getMessage());
 		}
 	}
 
@@ -157,13 +223,36 @@ public class LuaEnvironment {
 	 * @param fileName the relative filename to load the commands from
 	 */
 	public void evaluateCommandsFromFile(CommandSender sender, LuaValue env, String fileName) {
-		try {
-			LuaValue result = env.get("dofile").call(LuaValue.valueOf(plugin.getConfig_path_prefix()+fileName));
-		} catch(LuaError error) {
-			reportError(sender,error.getMessage());
+		LuaState state = getState(env);
+		synchronized(state) {
+			LuaState prior = state.enter();
+			try {
+				run(sender, env, fileName, env.get("dofile"), LuaValue.valueOf(plugin.getConfig_path_prefix()+fileName));
+			} catch(LuaError error) {
+				reportError(sender,error.getMessage());
+			} finally {
+				prior.enter();
+			}
 		}
 	}
 
+	/**
+	 * Run a function in the virtual machine state entered by the current thread, in time slices
+	 * by the scheduler if there is one, otherwise right away
+	 * @param sender the sender on the part of whom the function is run
+	 * @param env the environment in which the function is run
+	 * @param name name of the script, for reporting
+	 * @param function the function
+	 * @param args arguments to the function
+	 */
+	private void run(CommandSender sender, LuaValue env, String name, LuaValue function, Varargs args) {
+		ScriptScheduler scheduler = plugin.getScheduler();
+		if(scheduler!=null)
+			scheduler.submit(name, sender, function, args, env);
+		else
+			function.invoke(args);
+	}
+
 	/**
 	 * Report an error from evaluating a Lua command
 	 * @param sender who the error should be report to
@@ -22,8 +22,15 @@
 
 package dk.sdu.mmmi.modular.luaj4bukkit;
 
+import java.io.File;
+
 import org.bukkit.event.HandlerList;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.compiler.LuacCache;
+import org.luaj.vm2.lib.jse.JseIoLib;
+import org.luaj.vm2.luajc.LuaJC;
 
 
 public class LuaJ4BukkitPlugin extends JavaPlugin {
@@ -52,6 +59,11 @@ public class LuaJ4BukkitPlugin extends JavaPlugin {
 	 */
 	private LuaEnvironment environment;
 	
+	/**
+	 * The scheduler running scripts in time slices
+	 */
+	private ScriptScheduler scheduler;
+	
 	/**
 	 * Obtain event handler used for routing events from bukkit to lua
 	 * @return event handler instance
@@ -68,6 +80,14 @@ public class LuaJ4BukkitPlugin extends JavaPlugin {
 		return environment;
 	}
 
+	/**
+	 * Obtain scheduler running scripts in time slices
+	 * @return the scheduler, or null if scripts are not scheduled (no tick budget configured)
+	 */
+	public ScriptScheduler getScheduler() {
+		return scheduler;
+	}
+
 	/**
 	 * Initialize resources
 	 */
@@ -75,6 +95,12 @@ public class LuaJ4BukkitPlugin extends JavaPlugin {
 	public void onEnable() {
 		instance = this;
 		loadConfiguration();
+		// The compiler and its cache are shared by all environments, so they are chosen once here
+		LuaC.install();
+		if(config_compile_bytecode) LuaJC.install();
+		if(config_bytecode_cache) LuacCache.install(new File(config_path_prefix+".luac"));
+		// Scripts run in time slices if there is a budget
+		if(config_tick_budget>0) scheduler = new ScriptScheduler(this, config_tick_budget);
 		// Initialize lua environment manager
 		environment = new LuaEnvironment(this);
 		InteractivePrompt prompt = new InteractivePrompt(this,environment);
@@ -84,6 +110,7 @@ public class LuaJ4BukkitPlugin extends JavaPlugin {
 		getCommand("lua").setExecutor(prompt.getProcessorFor_lua());
 		getCommand("lua.load").setExecutor(prompt.getProcessorFor_lua_load());
 		getCommand("lua.reload").setExecutor(prompt.getProcessorFor_lua_reload());
+		getCommand("lua.tasks").setExecutor(prompt.getProcessorFor_lua_tasks());
 		getLogger().info("WARNING: luaj4bukkit plugin enabled, enables arbitrary code execution and arbitrary file access!");
 	}
 
@@ -92,9 +119,12 @@ public class LuaJ4BukkitPlugin extends JavaPlugin {
 	 */
 	@Override
 	public void onDisable() {
+		if(eventHandler!=null) eventHandler.unregisterBatches();
 		eventHandler = null;
 		environment = null;
+		scheduler = null;
 		HandlerList.unregisterAll(this);
+		JseIoLib.closeAll();
 		instance = null;
 	}
 
@@ -103,10 +133,21 @@ public class LuaJ4BukkitPlugin extends JavaPlugin {
 	 */
 	private void loadConfiguration() {
 		config_path_prefix = getConfig().getString(CONFIG_PATH_PREFIX);
+		config_bytecode_cache = getConfig().getBoolean(CONFIG_BYTECODE_CACHE);
 		config_startup_file = getConfig().getString(CONFIG_STARTUP_FILE);
 		config_load_startup = getConfig().getBoolean(CONFIG_LOAD_STARTUP);
 		config_load_internal = getConfig().getBoolean(CONFIG_LOAD_INTERNAL);
 		config_internal_defs = getConfig().getString(CONFIG_INTERNAL_DEFS);
+		config_compile_bytecode = getConfig().getBoolean(CONFIG_COMPILE_BYTECODE);
+		String mode = getConfig().getString(CONFIG_COROUTINE_MODE, "platform");
+		if(mode.equals("virtual"))
+			config_coroutine_mode = LuaThread.COROUTINE_VIRTUAL_THREADS;
+		else if(mode.equals("pooled"))
+			config_coroutine_mode = LuaThread.COROUTINE_POOLED_THREADS;
+		else
+			config_coroutine_mode = LuaThread.COROUTINE_PLATFORM_THREADS;
+		config_reuse_event_userdata = getConfig().getBoolean(CONFIG_REUSE_EVENT_USERDATA);
+		config_tick_budget = getConfig().getLong(CONFIG_TICK_BUDGET)*1000000L;
 	}
 
 	/**
@@ -148,22 +189,72 @@ public class LuaJ4BukkitPlugin extends JavaPlugin {
 		return config_internal_defs;
 	}
 
+	/**
+	 * Configuration: should compiled lua files be kept in a ".luac" directory under the path prefix,
+	 * so that unchanged files are not parsed again after a restart?
+	 */
+	public boolean isConfig_bytecode_cache() {
+		return config_bytecode_cache;
+	}
+
+	/**
+	 * Configuration: should lua functions be compiled to Java bytecode rather than interpreted?
+	 */
+	public boolean isConfig_compile_bytecode() {
+		return config_compile_bytecode;
+	}
+
+	/**
+	 * Configuration: how coroutines are carried by Java threads (one of the LuaThread.COROUTINE_ modes)
+	 */
+	public int getConfig_coroutine_mode() {
+		return config_coroutine_mode;
+	}
+
+	/**
+	 * Configuration: should the userdata passed to event handlers be reused for the next event?
+	 * (only safe if handlers never keep the event after returning)
+	 */
+	public boolean isConfig_reuse_event_userdata() {
+		return config_reuse_event_userdata;
+	}
+
+	/**
+	 * Configuration: nanoseconds of each tick that lua code may use, 
+	 * both scheduled scripts together and each event handler (0, the default, for no limit,
+	 * in which case scripts run to completion on the thread issuing the command; otherwise
+	 * see {@link ScriptScheduler} for the threads scripts then run on)
+	 */
+	public long getConfig_tick_budget() {
+		return config_tick_budget;
+	}
+
 	/**
 	 * Configuration data
 	 */
 	private String config_path_prefix;
+	private boolean config_bytecode_cache;
 	private String config_startup_file;
 	private boolean config_load_startup;
 	private boolean config_load_internal;
 	private String config_internal_defs;
+	private boolean config_compile_bytecode;
+	private int config_coroutine_mode;
+	private boolean config_reuse_event_userdata;
+	private long config_tick_budget;
 
 	/**
 	 * Configuration key names
 	 */
 	private static final String CONFIG_PATH_PREFIX = "files.default_path_prefix";
+	private static final String CONFIG_BYTECODE_CACHE = "files.bytecode_cache";
 	private static final String CONFIG_STARTUP_FILE = "startup.init_file_name";
 	private static final String CONFIG_LOAD_STARTUP = "startup.load_init_file";
 	private static final String CONFIG_LOAD_INTERNAL = "startup.load_internal_definitions";
 	private static final String CONFIG_INTERNAL_DEFS = "startup.internal_definitions";
+	private static final String CONFIG_COMPILE_BYTECODE = "vm.compile_to_bytecode";
+	private static final String CONFIG_COROUTINE_MODE = "vm.coroutine_threads";
+	private static final String CONFIG_REUSE_EVENT_USERDATA = "events.reuse_userdata";
+	private static final String CONFIG_TICK_BUDGET = "scheduler.tick_budget_ms";
 
 }
\ No newline at end of file
@@ -55,7 +55,7 @@ public class LuaMinecraftLib extends OneArgFunction {
 		case 0: { // initialize function table
 			LuaValue dispatchTable = tableOf();
 			this.bind(dispatchTable, LuaMinecraftLib.class, new String[] { "classForName" }, 1 );
-			this.bind(dispatchTable, TwoArgDispatch.class, new String[] { "handleEvent", "displayString" }, 1 );
+			this.bind(dispatchTable, TwoArgDispatch.class, new String[] { "handleEvent", "displayString", "handleEventBatch", "handleEventLatest" }, 1 );
 			env.set("minecraft", dispatchTable);
 			return dispatchTable;
 		}
@@ -90,6 +90,18 @@ public class LuaMinecraftLib extends OneArgFunction {
 					throw new LuaError("Illegal event class name, not found: "+eventClassName);
 				}
 			}
+			case 3: // handleEventBatch: as handleEvent, but handler is called once per tick with a table of the events
+			case 4: { // handleEventLatest: as handleEventBatch, keeping only the latest event per player or block
+				String eventClassName = arg1.checkjstring();
+				try {
+					Class<? extends Event> eventClass = (Class<Event>)Class.forName(eventClassName);
+					if(!Event.class.isAssignableFrom(eventClass)) throw new Error("Illegal event class type, not Event subtype");
+					LuaJ4BukkitPlugin.getInstance().getEventHandler().registerBatch(eventClass,arg2,opcode==4);
+					return this;
+				} catch (ClassNotFoundException e) {
+					throw new LuaError("Illegal event class name, not found: "+eventClassName);
+				}
+			}
 			case 2: { // print: a print function with output to the player (arg1), if any, of text string (arg2)
 				LuaEnvironment env = LuaJ4BukkitPlugin.getInstance().getLuaEnvironment(); // has display message function
 				CommandSender receiver = null;
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2012 University of Southern Denmark. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package dk.sdu.mmmi.modular.luaj4bukkit;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.bukkit.command.CommandSender;
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Cooperative scheduler running lua scripts on the main server thread in time slices, so that
+ * together the scripts never use more than a fixed budget of each server tick.
+ * 
+ * Each script runs as a coroutine.  Every tick the scripts are resumed in turn, each with an equal
+ * share of what is left of the budget; a script still running when its slice is over is paused
+ * and continues in a later tick, as does a script that calls coroutine.yield().  A script that waits
+ * for file io done by the aio library off the main thread yields the future of the io, and is left out
+ * until the io is done.
+ * 
+ * Like any coroutine, a script runs on a java thread of its own, which takes turns with the main
+ * server thread: the server thread waits while the script runs, so the two never run at the same time,
+ * but calls the script makes into the Bukkit API come from the script's thread rather than the main
+ * thread.  Scripts must therefore only use the parts of the API that do not check which thread calls them,
+ * and should not rely on thread locals set up by the server.  For this reason the scheduler is only used
+ * when a tick budget is configured.
+ * @author ups
+ *
+ */
+public class ScriptScheduler implements Runnable {
+
+	/**
+	 * A script run by the scheduler
+	 */
+	public static class Script {
+		private final String name;
+		private final CommandSender sender;
+		private final LuaState state;
+		private final LuaThread thread;
+		private Varargs args;
+		private long cputime;
+		private Future<?> waiting;
+
+		private Script(String name, CommandSender sender, LuaState state, LuaThread thread, Varargs args) {
+			this.name = name; this.sender = sender; this.state = state; this.thread = thread; this.args = args;
+		}
+		
+		/**
+		 * Name of the script, for reporting
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Time spent running the script so far, in nanoseconds
+		 */
+		public long getCpuTime() {
+			return cputime;
+		}
+		
+		/**
+		 * Is the script waiting for io to finish?
+		 */
+		public boolean isWaiting() {
+			return waiting!=null && !waiting.isDone();
+		}
+		
+		/**
+		 * Has the script finished?
+		 */
+		public boolean isDone() {
+			return thread.getStatus().equals("dead");
+		}
+	}
+	
+	/**
+	 * The plugin that the scheduler runs scripts for
+	 */
+	private LuaJ4BukkitPlugin plugin;
+
+	/**
+	 * Nanoseconds of each tick available to scripts
+	 */
+	private long budget;
+
+	/**
+	 * Scripts that have not finished, in the order they are resumed
+	 */
+	private LinkedList<Script> scripts = new LinkedList<Script>();
+	
+	/**
+	 * Id of the repeating task resuming scripts, or -1 when there are no scripts
+	 */
+	private int taskId = -1;
+
+	/**
+	 * Create a scheduler for the given plugin
+	 * @param plugin the plugin to schedule tasks for
+	 * @param budget nanoseconds of each tick available to scripts
+	 */
+	public ScriptScheduler(LuaJ4BukkitPlugin plugin, long budget) {
+		this.plugin = plugin; this.budget = budget;
+	}
+	
+	/**
+	 * Start running a function as a script, from the next tick on, in the virtual machine state
+	 * entered by the current thread; errors are reported to the sender
+	 * @param name name of the script, for reporting
+	 * @param sender who the script runs for
+	 * @param function the function to run
+	 * @param args the arguments to the function
+	 * @param env the environment of the script
+	 * @return the script
+	 */
+	public Script submit(String name, CommandSender sender, LuaValue function, Varargs args, LuaValue env) {
+		Script script = new Script(name, sender, LuaState.current(), new LuaThread(function, env), args);
+		synchronized(scripts) {
+			scripts.add(script);
+			if(taskId==-1)
+				taskId = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, this, 1L, 1L);
+		}
+		return script;
+	}
+	
+	/**
+	 * Get the scripts that have not finished yet
+	 * @return list of the scripts
+	 */
+	public List<Script> getScripts() {
+		synchronized(scripts) {
+			return new ArrayList<Script>(scripts);
+		}
+	}
+	
+	/**
+	 * Run the scripts for one tick (scripts are resumed without holding the lock, since they may submit new scripts)
+	 */
+	@Override
+	public void run() {
+		long remaining = budget;
+		int n;
+		synchronized(scripts) {
+			n = scripts.size();
+		}
+		// scripts not reached when the budget runs out stay in front for the next tick
+		for(; n>0 && remaining>0; n--) {
+			Script script;
+			synchronized(scripts) {
+				script = scripts.removeFirst();
+			}
+			if(!script.isWaiting())
+				remaining -= resume(script, remaining/n);
+			if(!script.isDone()) {
+				synchronized(scripts) {
+					scripts.addLast(script);
+				}
+			}
+		}
+		synchronized(scripts) {
+			if(scripts.isEmpty()) {
+				plugin.getServer().getScheduler().cancelTask(taskId);
+				taskId = -1;
+			}
+		}
+	}
+	
+	/**
+	 * Resume a script for one time slice
+	 * @param script the script
+	 * @param slice length of the time slice in nanoseconds
+	 * @return nanoseconds used
+	 */
+	private long resume(Script script, long slice) {
+		Varargs result;
+		long used;
+		// locked against asynchronous event handlers of the same state
+		synchronized(script.state) {
+			LuaState prior = script.state.enter();
+			try {
+				script.state.beginSlice(script.thread, slice);
+				try {
+					result = script.thread.resume(script.args);
+				} finally {
+					used = script.state.endSlice();
+				}
+			} finally {
+				prior.enter();
+			}
+		}
+		script.args = LuaValue.NONE;
+		script.cputime += used;
+		Object yielded = result.arg(2).touserdata();
+		script.waiting = yielded instanceof Future ? (Future<?>)yielded : null;
+		if(!result.arg1().toboolean())
+			plugin.getLuaEnvironment().reportError(script.sender, result.arg(2).tojstring());
+		return used;
+	}
+}
@@ -109,7 +109,7 @@ public final class Buffer {
 	 */
 	public final LuaString tostring() {
 		realloc( length, 0 );
-		return LuaString.valueOf( bytes, offset, length );
+		return LuaString.valueOfConcat( bytes, length );
 	}
 	
 	/** 
@@ -187,7 +187,12 @@ public final class Buffer {
 	 * @return {@link Buffer} for use in call chaining.
 	 */
 	public Buffer concatTo(LuaString lhs) {
-		return value!=null&&!value.isstring()? setvalue(lhs.concat(value)): prepend(lhs);
+		if ( value!=null&&!value.isstring() )
+			return setvalue(lhs.concat(value));
+		// appending to a string being built piece by piece is cheaper than prepending it
+		if ( lhs.isConcat() && lhs.m_length >= length )
+			return setvalue(lhs.concat(value()));
+		return prepend(lhs);
 	}
 
 	/** Concatenate this buffer onto a {@link LuaNumber}
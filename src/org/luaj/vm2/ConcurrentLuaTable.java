@@ -0,0 +1,256 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Subclass of {@link LuaTable} that may be shared between java threads.
+ * <p>
+ * A plain {@link LuaTable} must only be used by one java thread at a time: 
+ * a write from another thread may not be seen, 
+ * and a read or write during a rehash can see or lose entries. 
+ * This table guards its storage with a read-write lock, 
+ * so any number of threads can read it at once, 
+ * while a write waits for the reads in progress and excludes all others. 
+ * Each {@code rawget}, {@code rawset} and {@code next} is atomic, 
+ * and a write is visible to every read that starts after it.
+ * <p>
+ * Operations made of several steps are not atomic as a whole. 
+ * A {@code pairs} loop sees each element as of the step that reaches it, 
+ * and fails as for any table if its current key is removed by another thread. 
+ * Likewise {@code t[k] = t[k] + 1} can lose an update made in between. 
+ * The exceptions are {@code table.insert}, {@code table.remove} and {@code table.sort}, 
+ * which hold the lock throughout. 
+ * <p>
+ * Weak modes are not supported, so a {@code __mode} in the metatable is ignored.
+ * <p>
+ * Normally these are created from lua by calling {@code table.concurrent(n)}. 
+ * 
+ * @see LuaTable
+ * @see org.luaj.vm2.lib.TableLib
+ */
+public class ConcurrentLuaTable extends LuaTable {
+
+	private final Lock read, write;
+
+	/** Construct an empty table that may be shared between threads */
+	public ConcurrentLuaTable() {
+		ReadWriteLock lock = new ReentrantReadWriteLock();
+		read = lock.readLock();
+		write = lock.writeLock();
+	}
+
+	/** 
+	 * Construct an empty table with preset capacity that may be shared between threads
+	 * @param narray capacity of array part
+	 * @param nhash capacity of hash part
+	 */
+	public ConcurrentLuaTable(int narray, int nhash) {
+		this();
+		super.presize(narray, nhash);
+	}
+
+	public void presize( int narray ) {
+		write.lock();
+		try {
+			super.presize(narray);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public void presize( int narray, int nhash ) {
+		write.lock();
+		try {
+			super.presize(narray, nhash);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public LuaValue setmetatable( LuaValue metatable ) {
+		write.lock();
+		try {
+			m_metatable = metatable;
+			return this;
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public LuaValue getmetatable() {
+		read.lock();
+		try {
+			return m_metatable;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	protected LuaTable changemode( boolean weakkeys, boolean weakvalues ) {
+		return this;
+	}
+
+	// the slot remembered in the cache may be rehashed by another thread at any time
+	public LuaValue get( LuaValue key, InlineCache[] cache, int index ) {
+		return get(key);
+	}
+
+	public LuaValue rawget( int key ) {
+		read.lock();
+		try {
+			return super.rawget(key);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	public LuaValue rawget( LuaValue key ) {
+		read.lock();
+		try {
+			return super.rawget(key);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	public void rawset( int key, LuaValue value ) {
+		write.lock();
+		try {
+			super.rawset(key, value);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public void rawset( LuaValue key, LuaValue value ) {
+		write.lock();
+		try {
+			super.rawset(key, value);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public void hashset( LuaValue key, LuaValue value ) {
+		write.lock();
+		try {
+			super.hashset(key, value);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public LuaValue remove( int pos ) {
+		write.lock();
+		try {
+			return super.remove(pos);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public void insert( int pos, LuaValue value ) {
+		write.lock();
+		try {
+			super.insert(pos, value);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public void sort( LuaValue comparator ) {
+		write.lock();
+		try {
+			super.sort(comparator);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	public LuaValue getn() {
+		read.lock();
+		try {
+			return super.getn();
+		} finally {
+			read.unlock();
+		}
+	}
+
+	// the border hint is written under the read lock, which is harmless as it is checked before use
+	public int length() {
+		read.lock();
+		try {
+			return super.length();
+		} finally {
+			read.unlock();
+		}
+	}
+
+	public int maxn() {
+		read.lock();
+		try {
+			return super.maxn();
+		} finally {
+			read.unlock();
+		}
+	}
+
+	public Varargs next( LuaValue key ) {
+		read.lock();
+		try {
+			return super.next(key);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	public boolean nextStep( LuaValue[] stack, int a, int c ) {
+		read.lock();
+		try {
+			return super.nextStep(stack, a, c);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	public int keyCount() {
+		read.lock();
+		try {
+			return super.keyCount();
+		} finally {
+			read.unlock();
+		}
+	}
+
+	public LuaValue[] keys() {
+		read.lock();
+		try {
+			return super.keys();
+		} finally {
+			read.unlock();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Location of a key in the hash part of a {@link LuaTable},
+ * remembered by a single table lookup instruction.
+ * <p>
+ * Each {@link Prototype} keeps one entry per instruction in {@link Prototype#icache}.
+ * When the instruction is executed again with the same key against the same table,
+ * the value can be read directly from the remembered slot
+ * without hashing the key or probing the table.
+ * <p>
+ * An entry identifies the table by its array of hash keys,
+ * which is replaced whenever the hash part is resized,
+ * and is only valid while that array still holds the same key in the same slot,
+ * so an entry never needs to be invalidated explicitly.
+ * Entries are immutable, and replaced as a whole when a lookup misses.
+ *
+ * @see LuaTable#get(LuaValue, InlineCache[], int)
+ * @see LuaClosure
+ */
+public final class InlineCache {
+
+	/** The array of hash keys of the table when the entry was made */
+	final LuaValue[] keys;
+
+	/** The key that was looked up, normally a constant of the prototype */
+	final LuaValue lookup;
+
+	/** The key as stored in the table at the time */
+	final LuaValue key;
+
+	/** Index of the key and its value in the hash part */
+	final int slot;
+
+	InlineCache(LuaValue[] keys, LuaValue lookup, LuaValue key, int slot) {
+		this.keys = keys;
+		this.lookup = lookup;
+		this.key = key;
+		this.slot = slot;
+	}
+
+	/**
+	 * Get the inline cache of a prototype, creating it on first use
+	 * @param p the {@link Prototype} whose lookups are to be cached
+	 * @return array with one entry per instruction of {@code p}
+	 */
+	public static InlineCache[] of(Prototype p) {
+		InlineCache[] c = p.icache;
+		return c!=null? c: (p.icache = new InlineCache[p.code.length]);
+	}
+}
@@ -129,38 +129,42 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final LuaValue call() {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
-		return execute(stack,NONE).arg1();
+		LuaState s = LuaState.current();
+		LuaThread t = LuaThread.framePool(s);
+		LuaValue[] stack = newFrame(t);
+		return returned(t,stack,execute(s,stack,NONE)).arg1();
 	}
 
 	public final LuaValue call(LuaValue arg) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		LuaState s = LuaState.current();
+		LuaThread t = LuaThread.framePool(s);
+		LuaValue[] stack = newFrame(t);
 		switch ( p.numparams ) {
-		default: stack[0]=arg; return execute(stack,NONE).arg1();
-		case 0: return execute(stack,arg).arg1();
+		default: stack[0]=arg; return returned(t,stack,execute(s,stack,NONE)).arg1();
+		case 0: return returned(t,stack,execute(s,stack,arg)).arg1();
 		}
 	}
 	
 	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		LuaState s = LuaState.current();
+		LuaThread t = LuaThread.framePool(s);
+		LuaValue[] stack = newFrame(t);
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE).arg1();
-		case 1: stack[0]=arg1; return execute(stack,arg2).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; return returned(t,stack,execute(s,stack,NONE)).arg1();
+		case 1: stack[0]=arg1; return returned(t,stack,execute(s,stack,arg2)).arg1();
+		case 0: return returned(t,stack,execute(s,stack,p.is_vararg!=0? varargsOf(arg1,arg2): NONE)).arg1();
 		}
 	}
 
 	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		LuaState s = LuaState.current();
+		LuaThread t = LuaThread.framePool(s);
+		LuaValue[] stack = newFrame(t);
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE).arg1();
-		case 2: stack[0]=arg1; stack[1]=arg2; return execute(stack,arg3).arg1();
-		case 1: stack[0]=arg1; return execute(stack,p.is_vararg!=0? varargsOf(arg2,arg3): NONE).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return returned(t,stack,execute(s,stack,NONE)).arg1();
+		case 2: stack[0]=arg1; stack[1]=arg2; return returned(t,stack,execute(s,stack,arg3)).arg1();
+		case 1: stack[0]=arg1; return returned(t,stack,execute(s,stack,p.is_vararg!=0? varargsOf(arg2,arg3): NONE)).arg1();
+		case 0: return returned(t,stack,execute(s,stack,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE)).arg1();
 		}
 	}
 
@@ -169,38 +173,104 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public Varargs onInvoke(Varargs varargs) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		LuaState s = LuaState.current();
+		LuaThread t = LuaThread.framePool(s);
+		LuaValue[] stack = newFrame(t);
 		for ( int i=0; i<p.numparams; i++ )
 			stack[i] = varargs.arg(i+1);		
-		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
+		return returned(t,stack,execute(s,stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE));
 	}
 	
+	/** 
+	 * Get the register array for a call, from the frame pool of the running coroutine if there is one.
+	 * @param t the {@link LuaThread} from {@link LuaThread#framePool()}, or null
+	 * @return array of {@link Prototype#maxstacksize} or more registers, all {@link #NIL}
+	 */
+	private LuaValue[] newFrame(LuaThread t) {
+		if ( t != null )
+			return t.newFrame(p.maxstacksize);
+		LuaValue[] stack = new LuaValue[p.maxstacksize];
+		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		return stack;
+	}
+
+	/** 
+	 * Return the register array of a call that has returned to the pool it came from.
+	 * <p>
+	 * This is safe because {@link #execute(LuaState, LuaValue[], Varargs)} never returns 
+	 * values or tail call arguments that refer to its registers, 
+	 * and closes all upvalues before returning.
+	 * @return {@code r}
+	 */
+	private Varargs returned(LuaThread t, LuaValue[] stack, Varargs r) {
+		if ( t != null )
+			t.releaseFrame(stack, p.maxstacksize);
+		return r;
+	}
+	
+	/**
+	 * Construct {@link Varargs} holding a copy of some registers, 
+	 * for values that must remain valid after the register array is reused.
+	 * <p>
+	 * {@code more} is copied as well if it is a view of the registers, 
+	 * as when a function returns the results of a call that returned its arguments. 
+	 * @param stack the register array
+	 * @param offset the first register
+	 * @param length the number of registers
+	 * @param more the values following the registers
+	 * @return {@link Varargs} with the register values followed by {@code more}
+	 */
+	protected static Varargs frameVarargs(LuaValue[] stack, int offset, int length, Varargs more) {
+		more = more.unshare(stack);
+		switch ( length ) {
+		case 0: return more;
+		case 1: return varargsOf(stack[offset],more);
+		case 2: return varargsOf(stack[offset],stack[offset+1],more);
+		default:
+			if ( length == 3 && more == NONE )
+				return new TripleVarargs(stack[offset],stack[offset+1],stack[offset+2]);
+			LuaValue[] v = new LuaValue[length];
+			System.arraycopy(stack, offset, v, 0, length);
+			return varargsOf(v,more);
+		}
+	}
 	
-	protected Varargs execute( LuaValue[] stack, Varargs varargs ) {
+	/**
+	 * Execute the function with its registers and arguments set up
+	 * @param s the {@link LuaState} of the current java thread
+	 * @param stack the register array, with parameters filled in
+	 * @param varargs the variable arguments, if any
+	 * @return the return values, possibly a pending tail call, 
+	 * never referring to {@code stack}
+	 */
+	protected Varargs execute( LuaState s, LuaValue[] stack, Varargs varargs ) {
 		// loop through instructions
 		int i,a,b,c,pc=0,top=0;
 		LuaValue o;
 		Varargs v = NONE;
 		int[] code = p.code;
 		LuaValue[] k = p.k;
+		InlineCache[] ic = InlineCache.of(p);
+		
+		// debug wants args to this function
+		final boolean debug = s.isDebugEnabled();
 		
 		// upvalues are only possible when closures create closures
-		UpValue[] openups = p.p.length>0? new UpValue[stack.length]: null;
+		UpValue[] openups = p.p.length>0? s.running.newUpValues(stack.length): null;
 		
 		// create varargs "arg" table
 		if ( p.is_vararg >= Lua.VARARG_NEEDSARG )
 			stack[p.numparams] = new LuaTable(varargs);
 
-		// debug wants args to this function
-		if (DebugLib.DEBUG_ENABLED) 
+		if (debug) 
 			DebugLib.debugSetupCall(varargs, stack);
 
 		// process instructions
-		LuaThread.onCall( this ); 
+		LuaThread.onCall( s, this ); 
 		try {
+			s.checkpoint();
 			while ( true ) {
-				if (DebugLib.DEBUG_ENABLED) 
+				if (debug) 
 					DebugLib.debugBytecode(pc, v, top);
 				
 				// pull out instruction
@@ -234,11 +304,11 @@ public class LuaClosure extends LuaFunction {
 	                continue;
 					
 				case Lua.OP_GETGLOBAL: /*	A Bx	R(A):= Gbl[Kst(Bx)]				*/
-	                stack[a] = env.get(k[i>>>14]);
+	                stack[a] = env.get(k[i>>>14], ic, pc);
 					continue;
 					
 				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
-	                stack[a] = stack[i>>>23].get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+	                stack[a] = (c=(i>>14)&0x1ff)>0xff? stack[i>>>23].get(k[c&0x0ff], ic, pc): stack[i>>>23].get(stack[c]);
 					continue;
 					
 				case Lua.OP_SETGLOBAL: /*	A Bx	Gbl[Kst(Bx)]:= R(A)				*/
@@ -259,7 +329,7 @@ public class LuaClosure extends LuaFunction {
 					
 				case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
 					stack[a+1] = (o = stack[i>>>23]);
-					stack[a] = o.get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					stack[a] = (c=(i>>14)&0x1ff)>0xff? o.get(k[c&0x0ff], ic, pc): o.get(stack[c]);
 					continue;
 					
 				case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
@@ -314,7 +384,9 @@ public class LuaClosure extends LuaFunction {
 					continue;
 					
 				case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
-					pc  += (i>>>14)-0x1ffff;
+					pc  += (b=(i>>>14)-0x1ffff);
+					if ( b < 0 ) 
+						s.checkpoint();
 					continue;
 					
 				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
@@ -383,19 +455,19 @@ public class LuaClosure extends LuaFunction {
 					default:
 						b = i>>>23;
 						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+							frameVarargs(stack,a+1,b-1,NONE): // exact arg count
+							frameVarargs(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
 						return new TailcallVarargs( stack[a], v );
 					}
 					
 				case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
 					b = i>>>23;
 					switch ( b ) {
-					case 0: return varargsOf(stack, a, top-v.narg()-a, v); 
+					case 0: return frameVarargs(stack, a, top-v.narg()-a, v); 
 					case 1: return NONE;
 					case 2: return stack[a]; 
 					default:
-						return varargsOf(stack, a, b-1);
+						return frameVarargs(stack, a, b-1, NONE);
 					}
 					
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
@@ -407,6 +479,7 @@ public class LuaClosure extends LuaFunction {
 		                    stack[a] = idx;
 		                    stack[a + 3] = idx;
 		                    pc += (i>>>14)-0x1ffff;
+		                    s.checkpoint();
 			            }
 					}
 					continue;
@@ -428,16 +501,10 @@ public class LuaClosure extends LuaFunction {
 									 * R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
 									 * else pc++
 									 */
-					// TODO: stack call on for loop body, such as:   stack[a].call(ci);
-					v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
-					if ( (o=v.arg1()).isnil() )
+					if ( !stack[a].iterate(stack, a, (i>>14)&0x1ff) )
 						++pc;
-					else {
-						stack[a+2] = stack[a+3] = o;
-						for ( c=(i>>14)&0x1ff; c>1; --c )
-							stack[a+2+c] = v.arg(c);
-						v = NONE; // todo: necessary? 
-					}
+					else
+						s.checkpoint();
 					continue;
 					
 				case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
@@ -504,11 +571,15 @@ public class LuaClosure extends LuaFunction {
 			LuaError le = new LuaError(t);
 			throw le;
 		} finally {
-			LuaThread.onReturn();
-			if ( openups != null )
+			LuaThread.onReturn( s );
+			if ( openups != null ) {
 				for ( int u=openups.length; --u>=0; )
-					if ( openups[u] != null )
+					if ( openups[u] != null ) {
 						openups[u].close();
+						openups[u] = null;
+					}
+				s.running.releaseUpValues(openups);
+			}
 		}
 	}
 
@@ -31,6 +31,11 @@ import org.luaj.vm2.lib.MathLib;
  * functions.  This ensures that policies regarding pooling of instances are 
  * encapsulated.  
  * <p>
+ * Values from {@code -n} to {@code n-1} are cached, so that arithmetic and loops 
+ * producing them do not allocate, where {@code n} is taken from the system property 
+ * {@code luaj.intcache}, by default 1024.  Programs working with larger numbers, 
+ * such as coordinates or identifiers, can raise it.
+ * <p>
  * There are no API's specific to LuaInteger that are useful beyond what is already 
  * exposed in {@link LuaValue}.
  * 
@@ -42,14 +47,21 @@ import org.luaj.vm2.lib.MathLib;
  */
 public class LuaInteger extends LuaNumber {
 
-	private static final LuaInteger[] intValues = new LuaInteger[512];
+	/** Cached values are those from -CACHE to CACHE-1 */
+	private static final int CACHE = cacheBound(Integer.getInteger("luaj.intcache", 1024).intValue());
+
+	private static final LuaInteger[] intValues = new LuaInteger[CACHE*2];
 	static {
-		for ( int i=0; i<512; i++ )
-			intValues[i] = new LuaInteger(i-256);
+		for ( int i=0; i<CACHE*2; i++ )
+			intValues[i] = new LuaInteger(i-CACHE);
+	}
+
+	private static int cacheBound(int n) {
+		return n<256? 256: n>(1<<24)? (1<<24): n;
 	}
 
 	public static LuaInteger valueOf(int i) {
-		return i<=255 && i>=-256? intValues[i+256]: new LuaInteger(i);
+		return i<CACHE && i>=-CACHE? intValues[i+CACHE]: new LuaInteger(i);
 	};
 	
 	 // TODO consider moving this to LuaValue
@@ -61,7 +73,7 @@ public class LuaInteger extends LuaNumber {
 	 */
 	public static LuaNumber valueOf(long l) {
 		int i = (int) l;
-		return l==i? (i<=255 && i>=-256? intValues[i+256]: 
+		return l==i? (i<CACHE && i>=-CACHE? intValues[i+CACHE]: 
 			(LuaNumber) new LuaInteger(i)): 
 			(LuaNumber) LuaDouble.valueOf(l);
 	}
@@ -147,7 +159,7 @@ public class LuaInteger extends LuaNumber {
 	public LuaValue   add( int lhs )        { return LuaInteger.valueOf(lhs + (long)v); }
 	public LuaValue   sub( LuaValue rhs )        { return rhs.subFrom(v); }
 	public LuaValue   sub( double rhs )        { return LuaDouble.valueOf(v - rhs); }
-	public LuaValue   sub( int rhs )        { return LuaDouble.valueOf(v - rhs); }
+	public LuaValue   sub( int rhs )        { return LuaInteger.valueOf(v - (long)rhs); }
 	public LuaValue   subFrom( double lhs )   { return LuaDouble.valueOf(lhs - v); }
 	public LuaValue   subFrom( int lhs )      { return LuaInteger.valueOf(lhs - (long)v); }
 	public LuaValue   mul( LuaValue rhs )        { return rhs.mul(v); }
@@ -0,0 +1,270 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import org.luaj.vm2.lib.DebugLib;
+import org.luaj.vm2.lib.PackageLib;
+
+/**
+ * State of one lua virtual machine: its main thread, the coroutine
+ * currently running with its call stack, the package library
+ * and whether the debug library is enabled.
+ * <p>
+ * A {@link LuaState} is bound to the java thread executing lua code
+ * in it, so that several virtual machines can execute at the same time
+ * on different java threads without sharing a call stack.
+ * Java threads that have not entered any state use a single default state,
+ * so programs using only one virtual machine need not be aware of this class.
+ * Since several java threads may be calling into the default state at once, 
+ * each of them reuses register arrays from a pool of its own.
+ * <p>
+ * To run several independent virtual machines, create and enter
+ * a state before creating the globals, and enter it again on whichever
+ * java thread later executes code in those globals:
+ * <pre> {@code
+ * LuaState vm = new LuaState();
+ * LuaState prior = vm.enter();
+ * try {
+ *     LuaValue _G = JsePlatform.standardGlobals();
+ *     LoadState.load( new FileInputStream("main.lua"), "main.lua", _G ).call();
+ * } finally {
+ *     prior.enter();
+ * }
+ * } </pre>
+ * A state must be executing on at most one java thread at any time.
+ * Coroutines run on their own java threads and enter the state
+ * they were created in automatically.
+ * <p>
+ * Code can be given a time slice with {@link #beginSlice(LuaThread, long)}.
+ * Lua functions count their calls and loop iterations in {@link #checkpoint()}, 
+ * and now and then compare the time against the end of the slice,
+ * so that a script in an endless loop can be paused, 
+ * or stopped if it cannot be paused, instead of running forever:
+ * <pre> {@code
+ * LuaThread script = new LuaThread(chunk, _G);
+ * if ( vm.beginSlice(script, 5000000) ) {
+ *     try {
+ *         script.resume(LuaValue.NONE);
+ *     } finally {
+ *         vm.endSlice();
+ *     }
+ * }
+ * } </pre>
+ *
+ * @see LuaThread
+ * @see PackageLib
+ * @see DebugLib
+ */
+public final class LuaState {
+
+	/** State used by java threads that have not entered any other state */
+	private static final LuaState DEFAULT = new LuaState(true);
+
+	/** State entered by each java thread */
+	private static final ThreadLocal entered = new ThreadLocal();
+
+	/** The main thread of this virtual machine */
+	final LuaThread mainthread;
+
+	/** The coroutine currently running in this virtual machine, including its call stack */
+	LuaThread running;
+
+	/** Package library loaded into this virtual machine, if any */
+	public PackageLib packageLib;
+
+	/** True if the debug library has been loaded into this virtual machine */
+	public boolean debug;
+
+	/** How coroutines created in this virtual machine are carried by java threads */
+	int coroutineMode = LuaThread.COROUTINE_PLATFORM_THREADS;
+
+	/** Calls and loop iterations between looks at the clock while a time slice is active */
+	private static final int CHECK_INTERVAL = 1024;
+
+	/** Calls and loop iterations left until the next look at the clock */
+	private int countdown = CHECK_INTERVAL;
+
+	/** True while a time slice is active */
+	private boolean slicing;
+
+	/** Coroutine that yields when the time slice is over, or null to stop the code with an error */
+	private LuaThread sliced;
+
+	/** Value of {@link System#nanoTime()} when the time slice began and when it is over */
+	private long sliceStart, sliceEnd;
+
+	/** Total nanoseconds spent in time slices of this state */
+	private long slicetime;
+
+	/** Create a new state, with a main thread that has no globals yet */
+	public LuaState() {
+		this(false);
+	}
+
+	/**
+	 * Create a state
+	 * @param shared true if java threads may be executing in the state at the same time
+	 */
+	private LuaState(boolean shared) {
+		mainthread = new LuaThread(this, shared);
+		running = mainthread;
+	}
+
+	/**
+	 * Get the state entered by the current java thread.
+	 * @return the {@link LuaState} most recently entered on this java thread,
+	 * or the default state if none was entered
+	 */
+	public static LuaState current() {
+		LuaState s = (LuaState) entered.get();
+		return s!=null? s: DEFAULT;
+	}
+
+	/**
+	 * Make this the state of the current java thread.
+	 * @return the state that was current before, which can be entered again to restore it
+	 */
+	public LuaState enter() {
+		LuaState prior = current();
+		entered.set(this);
+		return prior;
+	}
+
+	/**
+	 * Get the main thread of this virtual machine
+	 * @return {@link LuaThread} which is the main thread
+	 */
+	public LuaThread getMainThread() {
+		return mainthread;
+	}
+
+	/**
+	 * Get the coroutine currently running in this virtual machine
+	 * @return {@link LuaThread} that is currently running
+	 */
+	public LuaThread getRunning() {
+		return running;
+	}
+
+	/**
+	 * Test if debug hooks should be called for code running in this state
+	 * @return true if the debug library is loaded into this state
+	 */
+	public final boolean isDebugEnabled() {
+		return DebugLib.DEBUG_ENABLED && debug;
+	}
+
+	/**
+	 * Begin a time slice for code executing in this state on the current java thread.
+	 * <p>
+	 * When the slice is over, {@code coroutine} yields with no values at its next call
+	 * or loop iteration, as if it had called {@code coroutine.yield()}, 
+	 * and can be resumed later to continue where it was.
+	 * Any other code still running in the state when the slice is over, 
+	 * including other coroutines started from {@code coroutine}, 
+	 * cannot be paused, and is stopped with a {@link TimeSliceError} instead.
+	 * <p>
+	 * Slices do not nest: while one is active, another cannot begin.
+	 * @param coroutine the coroutine to pause at the end of the slice, or null
+	 * @param nanos the length of the slice in nanoseconds
+	 * @return true if the slice began and must be ended by {@link #endSlice()}, 
+	 * false if a slice was already active
+	 */
+	public boolean beginSlice(LuaThread coroutine, long nanos) {
+		if ( slicing )
+			return false;
+		slicing = true;
+		sliced = coroutine;
+		sliceStart = System.nanoTime();
+		sliceEnd = sliceStart + nanos;
+		countdown = CHECK_INTERVAL;
+		return true;
+	}
+
+	/**
+	 * End the time slice begun by {@link #beginSlice(LuaThread, long)}
+	 * @return the nanoseconds the slice lasted
+	 */
+	public long endSlice() {
+		long used = System.nanoTime() - sliceStart;
+		slicetime += used;
+		slicing = false;
+		sliced = null;
+		return used;
+	}
+
+	/**
+	 * Test if a coroutine is the one paused at the end of the active time slice, 
+	 * which whoever began the slice resumes again later, so it may also yield to wait for something
+	 * @param coroutine the coroutine to test
+	 * @return true if a time slice is active and pauses {@code coroutine}
+	 */
+	public boolean isSliced(LuaThread coroutine) {
+		return slicing && coroutine != null && sliced == coroutine;
+	}
+
+	/**
+	 * Get the time spent running code in time slices of this state
+	 * @return the total length in nanoseconds of the slices ended so far
+	 */
+	public long getSliceTime() {
+		return slicetime;
+	}
+
+	/**
+	 * Count a call or loop iteration of a lua function, 
+	 * and pause or stop the running code if its time slice is over.
+	 * <p>
+	 * Called by interpreted and compiled functions on every call and backward jump,
+	 * so that no code can run for long without reaching it.
+	 */
+	public final void checkpoint() {
+		if ( --countdown < 0 ) 
+			sliceCheck();
+	}
+
+	private void sliceCheck() {
+		countdown = CHECK_INTERVAL;
+		if ( !slicing || System.nanoTime() - sliceEnd < 0 )
+			return;
+		if ( sliced == null || sliced != running ) {
+			// fail again at the next checkpoint, should anything catch the error and go on 
+			countdown = 0;
+			throw new TimeSliceError();
+		}
+		sliced.yield(LuaValue.NONE);
+	}
+
+	/**
+	 * Error stopping code that is still running when its time slice is over.
+	 * <p>
+	 * Unlike other errors it is not caught by {@code pcall} or {@code xpcall}, 
+	 * so that code cannot keep running by calling itself in protected mode.
+	 * @see LuaState#beginSlice(LuaThread, long)
+	 */
+	public static final class TimeSliceError extends LuaError {
+		private static final long serialVersionUID = 1L;
+		TimeSliceError() {
+			super("script exceeded its time slice");
+		}
+	}
+}
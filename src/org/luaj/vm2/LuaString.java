@@ -26,8 +26,7 @@ import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
-import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.luaj.vm2.lib.MathLib;
 import org.luaj.vm2.lib.StringLib;
@@ -42,7 +41,12 @@ import org.luaj.vm2.lib.StringLib;
  * {@link LuaString} values are generally not mutable once constructed, 
  * so multiple {@link LuaString} values can chare a single byte array.
  * <p>
- * Currently {@link LuaString}s are pooled via a centrally managed weak table.
+ * {@link LuaString}s made from java Strings are cached in a fixed size table 
+ * that threads read and write without locking, 
+ * so that strings used over and over, such as names of fields and methods, 
+ * are encoded only once, while strings seen only once are soon replaced. 
+ * Its size is taken from the system property {@code luaj.stringcache}, 
+ * and {@link #getCacheHits()} and {@link #getCacheMisses()} tell how well it works.
  * To ensure that as many string values as possible take advantage of this, 
  * Constructors are not exposed directly.  As with number, booleans, and nil, 
  * instance construction should be via {@link LuaValue#valueOf(byte[])} or similar API.
@@ -72,15 +76,96 @@ public class LuaString extends LuaValue {
 	/** The number of bytes that comprise this string */
 	public final int    m_length;
 
-	private static final Hashtable index_java = new Hashtable();
+	/** Unused room after the bytes of a string made by concatenation, {@link #PINNED}, or null */
+	private final Tail m_tail;
 
-	private final static LuaString index_get(Hashtable indextable, Object key) {
-		WeakReference w = (WeakReference) indextable.get(key);
-		return w!=null? (LuaString) w.get(): null;
+	/** Results of concatenation this long or longer get room to append to in place */
+	private static final int MIN_TAIL = 32;
+
+	/** Strings whose byte array is larger than this and mostly unused are copied by {@link #compact()} */
+	private static final int MIN_COMPACT = 1024;
+
+	/** 
+	 * Byte array of a string made by concatenation, with the length in use.
+	 * <p>
+	 * Bytes past {@code used} belong to no string yet, so the first string 
+	 * ending at {@code used} may append to it in place instead of copying, 
+	 * which makes building a string piece by piece with {@code s = s .. x} linear.
+	 * Strings sharing the array claim the room with a compare and set, so no lock is taken.
+	 */
+	private static final class Tail {
+		private static final AtomicIntegerFieldUpdater USED = AtomicIntegerFieldUpdater.newUpdater(Tail.class, "used");
+		volatile int used;
+		Tail(int used) {
+			this.used = used;
+		}
+		/** Claim the bytes from {@code used} up to {@code end}, return false if another string claimed them first */
+		boolean claim(int used, int end) {
+			return USED.compareAndSet(this, used, end);
+		}
+	}
+
+	/** Tail of strings using less than a quarter of a byte array of more than {@link #MIN_COMPACT} bytes, with no room to append to */
+	private static final Tail PINNED = new Tail(-1);
+
+	/** Cached strings by the java String they were made from, two slots per hash, most recent first */
+	private static final CacheEntry[] index_java = new CacheEntry[cacheSize(Integer.getInteger("luaj.stringcache", 1024).intValue())];
+
+	/** Lookups in the cache, counted without synchronization so only roughly right when threads race */
+	private static long index_hits, index_misses;
+
+	/** Immutable cache entry, so that it can be shared between threads without locking */
+	private static final class CacheEntry {
+		final String key;
+		final LuaString value;
+		CacheEntry(String key, LuaString value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static int cacheSize(int n) {
+		int size = 2;
+		while ( size < n && size < (1<<20) )
+			size <<= 1;
+		return size;
+	}
+
+	private final static LuaString index_get(CacheEntry[] index, String key) {
+		int i = LuaTable.hashSlot(key.hashCode(), index.length - 1);
+		CacheEntry e = index[i];
+		if ( e != null && e.key.equals(key) )
+			return e.value;
+		e = index[i^1];
+		if ( e != null && e.key.equals(key) ) {
+			// move to the first slot, so it stays longer
+			index[i^1] = index[i];
+			index[i] = e;
+			return e.value;
+		}
+		return null;
 	}
 	
-	private final static void index_set(Hashtable indextable, Object key, LuaString value) {
-		indextable.put(key, new WeakReference(value));
+	private final static void index_set(CacheEntry[] index, String key, LuaString value) {
+		int i = LuaTable.hashSlot(key.hashCode(), index.length - 1);
+		index[i^1] = index[i];
+		index[i] = new CacheEntry(key, value);
+	}
+
+	/**
+	 * Get the number of times {@link #valueOf(String)} found its string in the cache
+	 * @return number of hits since startup, approximate if several threads make strings at once
+	 */
+	public static long getCacheHits() {
+		return index_hits;
+	}
+
+	/**
+	 * Get the number of times {@link #valueOf(String)} had to encode a new string
+	 * @return number of misses since startup, approximate if several threads make strings at once
+	 */
+	public static long getCacheMisses() {
+		return index_misses;
 	}
 
 	/**
@@ -91,7 +176,11 @@ public class LuaString extends LuaValue {
 	 */
 	public static LuaString valueOf(String string) {
 		LuaString s = index_get( index_java, string );
-		if ( s != null ) return s;
+		if ( s != null ) {
+			++index_hits;
+			return s;
+		}
+		++index_misses;
 		char[] c = string.toCharArray();
 		byte[] b = new byte[lengthAsUtf8(c)];
 		encodeToUtf8(c, b, 0);
@@ -152,9 +241,40 @@ public class LuaString extends LuaValue {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	private LuaString(byte[] bytes, int offset, int length) {
+		this(bytes, offset, length, bytes.length > MIN_COMPACT && length < (bytes.length>>2)? PINNED: null);
+	}
+
+	/** 
+	 * Construct the result of a concatenation, which may be appended to in place
+	 * @param bytes byte array filled with the result from the start, not used elsewhere
+	 * @param length the length of the result
+	 * @return {@link LuaString} wrapping the byte array
+	 */
+	static LuaString valueOfConcat(byte[] bytes, int length) {
+		return new LuaString(bytes, 0, length, length>=MIN_TAIL? new Tail(length): null);
+	}
+
+	/** 
+	 * Test if this string was made by concatenation, so further concatenation may append to it in place 
+	 * @return true if there is a byte array that may have room after this string
+	 */
+	boolean isConcat() {
+		return m_tail != null && m_tail != PINNED;
+	}
+
+	/** 
+	 * Test if {@link #compact()} may copy this string, which is cheaper than calling it
+	 * @return true if this was made by concatenation or shares a large byte array
+	 */
+	boolean isCompactable() {
+		return m_tail != null;
+	}
+
+	private LuaString(byte[] bytes, int offset, int length, Tail tail) {
 		this.m_bytes = bytes;
 		this.m_offset = offset;
 		this.m_length = length;
+		this.m_tail = tail;
 	}
 
 	public boolean isstring() {
@@ -233,10 +353,27 @@ public class LuaString extends LuaValue {
 	public Buffer   concat(Buffer rhs)        { return rhs.concatTo(this); }
 	public LuaValue concatTo(LuaNumber lhs)   { return concatTo(lhs.strvalue()); }
 	public LuaValue concatTo(LuaString lhs)   { 
-		byte[] b = new byte[lhs.m_length+this.m_length];
+		int n = lhs.m_length+this.m_length;
+		Tail t = lhs.m_tail;
+		if ( t != null ) {
+			// append in place if lhs is the last string in its array and there is room
+			int end = lhs.m_offset+lhs.m_length;
+			if ( t.used == end && end+this.m_length <= lhs.m_bytes.length && t.claim(end, end+this.m_length) ) {
+				System.arraycopy(this.m_bytes, this.m_offset, lhs.m_bytes, end, this.m_length);
+				return new LuaString(lhs.m_bytes, lhs.m_offset, n, t);
+			}
+		}
+		if ( n < MIN_TAIL ) {
+			byte[] b = new byte[n];
+			System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
+			System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
+			return new LuaString(b, 0, n);
+		}
+		// leave room to grow only if lhs was itself made by concatenation 
+		byte[] b = new byte[lhs.isConcat()? n*2: n];
 		System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
 		System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
-		return new LuaString(b, 0, b.length);
+		return new LuaString(b, 0, n, new Tail(n));
 	}
 
 	// string comparison 
@@ -354,6 +491,24 @@ public class LuaString extends LuaValue {
 	public LuaString substring( int beginIndex, int endIndex ) {
 		return new LuaString( m_bytes, m_offset + beginIndex, endIndex - beginIndex );
 	}
+
+	/**
+	 * Get a copy of this string that does not keep a large byte array alive.
+	 * <p>
+	 * Substrings share the byte array of the string they were taken from, 
+	 * so a short token parsed out of a large file keeps the whole file in memory, 
+	 * and strings built by concatenation may have room to spare. 
+	 * Tables call this when such a string is stored in them, since values stored in tables 
+	 * are the ones likely to live long.
+	 * @return this, or a copy if this uses less than a quarter of a byte array of more than 1 KB
+	 */
+	public LuaString compact() {
+		if ( m_bytes.length <= MIN_COMPACT || m_length >= (m_bytes.length>>2) )
+			return this;
+		byte[] b = new byte[m_length];
+		System.arraycopy(m_bytes, m_offset, b, 0, m_length);
+		return new LuaString(b, 0, m_length);
+	}
 	
 	public int hashCode() {
 		int h = m_length;  /* seed */
@@ -481,8 +636,8 @@ public class LuaString extends LuaValue {
 	 * @return index of first match found, or -1 if not found.
 	 */
 	public int indexOf( byte b, int start ) {
-		for ( int i=0, j=m_offset+start; i < m_length; ++i ) {
-			if ( m_bytes[j++] == b )
+		for ( int i=start; i < m_length; ++i ) {
+			if ( m_bytes[m_offset+i] == b )
 				return i;
 		}
 		return -1;
@@ -499,7 +654,7 @@ public class LuaString extends LuaValue {
 		final int limit = m_offset + m_length - slen;
 		for ( int i = m_offset + start; i <= limit; ++i ) {
 			if ( equals( m_bytes, i, s.m_bytes, s.m_offset, slen ) ) {
-				return i;
+				return i - m_offset;
 			}
 		}
 		return -1;
@@ -515,7 +670,7 @@ public class LuaString extends LuaValue {
 		final int limit = m_offset + m_length - slen;
 		for ( int i = limit; i >= m_offset; --i ) {
 			if ( equals( m_bytes, i, s.m_bytes, s.m_offset, slen ) ) {
-				return i;
+				return i - m_offset;
 			}
 		}
 		return -1;
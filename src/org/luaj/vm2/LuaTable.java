@@ -71,6 +71,7 @@ import java.util.Vector;
  */
 public class LuaTable extends LuaValue {
 	private static final int      MIN_HASH_CAPACITY = 2;
+	private static final int[]    NOHASHES = {};
 	private static final LuaString N = valueOf("n");
 	
 	/** the array values */
@@ -82,17 +83,27 @@ public class LuaTable extends LuaValue {
 	/** the hash values */
 	protected LuaValue[] hashValues;
 	
+	/** the {@link LuaValue#hashCode()} of each hash key, so it is computed only once */
+	protected int[] hashCodes;
+	
 	/** the number of hash entries */
 	protected int hashEntries;
 	
 	/** metatable for this table, or null */
 	protected LuaValue m_metatable;
 	
+	/** a border of the table as last seen by {@link #length()} or kept by {@link #rawset(int, LuaValue)}, checked before use */
+	private int border;
+	
+	/** hash slot of the key last returned by {@link #nextStep(LuaValue[], int, int)}, to find it without hashing */
+	private int nextSlot;
+	
 	/** Construct empty table */
 	public LuaTable() {
 		array = NOVALS;
 		hashKeys = NOVALS;
 		hashValues = NOVALS;
+		hashCodes = NOHASHES;
 	}
 	
 	/** 
@@ -173,11 +184,21 @@ public class LuaTable extends LuaValue {
 	}
 
 	public void presize(int narray, int nhash) {
-		if ( nhash > 0 && nhash < MIN_HASH_CAPACITY )
-			nhash = MIN_HASH_CAPACITY;
 		array = (narray>0? new LuaValue[narray]: NOVALS);
-		hashKeys = (nhash>0? new LuaValue[nhash]: NOVALS);
-		hashValues = (nhash>0? new LuaValue[nhash]: NOVALS);
+		border = 0;
+		if ( nhash > 0 ) {
+			// smallest power of two that holds nhash entries without rehashing
+			int capacity = MIN_HASH_CAPACITY;
+			while ( nhash >= capacity - (capacity>>2) )
+				capacity <<= 1;
+			hashKeys = new LuaValue[capacity];
+			hashValues = new LuaValue[capacity];
+			hashCodes = new int[capacity];
+		} else {
+			hashKeys = NOVALS;
+			hashValues = NOVALS;
+			hashCodes = NOHASHES;
+		}
 		hashEntries = 0;
 	}
 
@@ -242,6 +263,24 @@ public class LuaTable extends LuaValue {
 		return v.isnil() && m_metatable!=null? gettable(this,key): v;
 	}
 
+	/** Get a value, reading string keys directly from the slot remembered in {@code cache} when possible.
+	 * @see LuaValue#get(LuaValue, InlineCache[], int)
+	 */
+	public LuaValue get( LuaValue key, InlineCache[] cache, int index ) {
+		final LuaValue[] keys = hashKeys;
+		InlineCache c = cache[index];
+		if ( c != null && c.keys == keys && c.lookup == key && keys[c.slot] == c.key )
+			return hashValues[c.slot];
+		if ( key.type() != TSTRING || hashEntries == 0 )
+			return get(key);
+		int slot = hashFindSlot(key);
+		LuaValue k = keys[slot];
+		if ( k == null )
+			return m_metatable!=null? gettable(this,key): NIL;
+		cache[index] = new InlineCache(keys, key, k, slot);
+		return hashValues[slot];
+	}
+
 	public LuaValue rawget( int key ) {
 		if ( key>0 && key<=array.length ) 
 			return array[key-1]!=null? array[key-1]: NIL;
@@ -278,24 +317,43 @@ public class LuaTable extends LuaValue {
 	}
 
 	public void rawset( int key, LuaValue value ) {
+		value = stored(value);
 		if ( ! arrayset(key, value) )
 			hashset( LuaInteger.valueOf(key), value );
 	}
 
 	/** caller must ensure key is not nil */
 	public void rawset( LuaValue key, LuaValue value ) {
+		value = stored(value);
 		if ( !key.isinttype() || !arrayset(key.toint(), value) )
 			hashset( key, value );
 	}
 
+	/** The value to store, a copy if it is a string that keeps a large and mostly unused byte array alive */
+	private static LuaValue stored( LuaValue value ) {
+		if ( value instanceof LuaString && ((LuaString) value).isCompactable() )
+			return ((LuaString) value).compact();
+		return value;
+	}
+
 	/** Set an array element */
 	private boolean arrayset( int key, LuaValue value ) {
 		if ( key>0 && key<=array.length ) {
-			array[key-1] = (value.isnil()? null: value);
+			if ( value.isnil() ) {
+				array[key-1] = null;
+				if ( key == border )
+					border = key-1;
+			} else {
+				array[key-1] = value;
+				if ( key == border+1 )
+					border = key;
+			}
 			return true;
 		} else if ( key==array.length+1 && !value.isnil() ) {
 			expandarray();
 			array[key-1] = value;
+			if ( key == border+1 )
+				border = key;
 			return true;
 		}
 		return false;
@@ -373,9 +431,27 @@ public class LuaTable extends LuaValue {
 		return ZERO;
 	}
 
+	/**
+	 * Get the length of the table as defined by the lua {@code #} operator, 
+	 * which is any border: a key {@code n} with a value where {@code n+1} has none, 
+	 * or 0 if key 1 has no value.
+	 * <p>
+	 * The border found last is remembered, and moved along as elements are 
+	 * added or removed at its end, so that for lists the length is found 
+	 * in constant time, and appending with {@code t[#t+1]=v} or 
+	 * {@code table.insert(t,v)} does not search the table each time.
+	 * @return a border of the table 
+	 */
 	public int length() {
+		int m = border;
+		if ( m>0 && rawget(m).isnil() )
+			m = 0;
+		else if ( rawget(m+1).isnil() )
+			return m;
+		
+		// m is 0 or a key with a value, find a larger key without one, then search between them
 		int a = getArrayLength();
-		int n = a+1,m=0;
+		int n = Math.max(m,a)+1;
 		while ( !rawget(n).isnil() ) {
 			m = n;
 			n += a+getHashLength()+1;
@@ -387,7 +463,7 @@ public class LuaTable extends LuaValue {
 			else
 				n = k;
 		}
-		return m;
+		return border = m;
 	}
 	
 	public LuaValue len()  { 
@@ -420,26 +496,7 @@ public class LuaTable extends LuaValue {
 	 * @return key,value or nil
 	 */
 	public Varargs next( LuaValue key ) {
-		int i = 0;
-		do {
-			// find current key index
-			if ( ! key.isnil() ) {
-				if ( key.isinttype() ) { 
-					i = key.toint();
-					if ( i>0 && i<=array.length ) {
-						if ( array[i-1] == null )
-							error( "invalid key to 'next'" );
-						break;
-					}
-				}
-				if ( hashKeys.length == 0 )
-					error( "invalid key to 'next'" );
-				i = hashFindSlot(key);
-				if ( hashKeys[i] == null )
-					error( "invalid key to 'next'" );
-				i += 1+array.length;
-			}
-		} while ( false );
+		int i = nextIndex(key);
 		
 		// check array part
 		for ( ; i<array.length; ++i )
@@ -454,6 +511,99 @@ public class LuaTable extends LuaValue {
 		// nothing found, push nil, return nil.
 		return NIL;
 	}
+
+	/**
+	 * Find where to continue looking for the element after a key
+	 * @param key the previous key, or nil to start
+	 * @return index into the array part, or the length of the array part plus a slot of the hash part 
+	 * @throws LuaError if the key is not in the table
+	 */
+	private int nextIndex( LuaValue key ) {
+		if ( key.isnil() )
+			return 0;
+		if ( key.isinttype() ) { 
+			int i = key.toint();
+			if ( i>0 && i<=array.length ) {
+				if ( array[i-1] == null )
+					error( "invalid key to 'next'" );
+				return i;
+			}
+		}
+		if ( hashKeys.length == 0 )
+			error( "invalid key to 'next'" );
+		int i = nextSlot;
+		if ( i >= hashKeys.length || hashKeys[i] != key ) {
+			i = hashFindSlot(key);
+			if ( hashKeys[i] == null )
+				error( "invalid key to 'next'" );
+		}
+		return i+1+array.length;
+	}
+
+	/**
+	 * Step a generic {@code for} loop using {@code next}, 
+	 * storing the next key and value directly in the registers of the loop.
+	 * <p>
+	 * Equivalent to calling {@link #next(LuaValue)} with the key in {@code stack[a+2]} 
+	 * as done by {@link LuaValue#iterate(LuaValue[], int, int)}, 
+	 * but allocates nothing for keys in the hash part, 
+	 * and finds the previous key without hashing it when it was returned by the previous step.
+	 * @param stack the registers of the loop
+	 * @param a the register of the iterator, followed by the table and the previous key
+	 * @param c the number of loop variables
+	 * @return true if there was another element, false at the end of the table
+	 * @throws LuaError if the previous key is not in the table
+	 */
+	public boolean nextStep( LuaValue[] stack, int a, int c ) {
+		return nextStep(nextIndex(stack[a+2]), stack, a, c);
+	}
+
+	/**
+	 * Store the first element at or after an index in the registers of a loop
+	 * @param i index into the array part, or the length of the array part plus a slot of the hash part
+	 * @return true if there was an element, false at the end of the table
+	 * @see #nextStep(LuaValue[], int, int)
+	 */
+	protected boolean nextStep( int i, LuaValue[] stack, int a, int c ) {
+		for ( ; i<array.length; ++i )
+			if ( array[i] != null )
+				return loopset(LuaInteger.valueOf(i+1), array[i], stack, a, c);
+		for ( i-=array.length; i<hashKeys.length; ++i )
+			if ( hashKeys[i] != null ) {
+				nextSlot = i;
+				return loopset(hashKeys[i], hashValues[i], stack, a, c);
+			}
+		return false;
+	}
+
+	/**
+	 * Step a generic {@code for} loop using {@code inext}, 
+	 * storing the next index and value directly in the registers of the loop.
+	 * @param stack the registers of the loop
+	 * @param a the register of the iterator, followed by the table and the previous index
+	 * @param c the number of loop variables
+	 * @return true if there was another element, false at the end of the list
+	 * @see #inext(LuaValue)
+	 */
+	public boolean inextStep( LuaValue[] stack, int a, int c ) {
+		int k = stack[a+2].checkint() + 1;
+		LuaValue v = rawget(k);
+		return !v.isnil() && loopset(LuaInteger.valueOf(k), v, stack, a, c);
+	}
+
+	/**
+	 * Store a key and value in the loop variables of a generic {@code for} loop
+	 * @return true
+	 */
+	protected static boolean loopset( LuaValue key, LuaValue value, LuaValue[] stack, int a, int c ) {
+		stack[a+2] = stack[a+3] = key;
+		if ( c > 1 ) {
+			stack[a+4] = value;
+			for ( ; c>2; --c )
+				stack[a+2+c] = NIL;
+		}
+		return true;
+	}
 		
 	/**
 	 * Get the next element after a particular key in the 
@@ -508,30 +658,52 @@ public class LuaTable extends LuaValue {
 			if ( hashKeys.length == 0 ) {
 				hashKeys = new LuaValue[ MIN_HASH_CAPACITY ];
 				hashValues = new LuaValue[ MIN_HASH_CAPACITY ];
+				hashCodes = new int[ MIN_HASH_CAPACITY ];
 			}
 			int slot = hashFindSlot( key );
 			if ( hashFillSlot( slot, value ) )
 				return;
-			hashKeys[slot] = key;
+			hashKeys[slot] = stored(key);
 			hashValues[slot] = value;
+			hashCodes[slot] = key.hashCode();
 			if ( checkLoadFactor() )
 				rehash();
 		}
 	}
 	
+	/**
+	 * Get the slot where probing for a key starts.
+	 * <p>
+	 * The hash part has a power of two capacity so the slot can be found with a mask, 
+	 * so the bits of the hash code are mixed first, 
+	 * or keys such as doubles whose low bits are all zero would all start in slot 0.
+	 * @param hashcode the {@link LuaValue#hashCode()} of the key
+	 * @param mask the capacity of the hash part less one
+	 * @return the first slot to probe
+	 */
+	protected static int hashSlot(int hashcode, int mask) {
+		int h = hashcode ^ (hashcode >>> 16);
+		h *= 0x85ebca6b;
+		return (h ^ (h >>> 13)) & mask;
+	}
+	
 	/** 
 	 * Find the hashtable slot to use
 	 * @param key key to look for
 	 * @return slot to use
 	 */
 	public int hashFindSlot(LuaValue key) {		
-		int i = ( key.hashCode() & 0x7FFFFFFF ) % hashKeys.length;
+		final LuaValue[] keys = hashKeys;
+		final int[] codes = hashCodes;
+		final int mask = keys.length - 1;
+		final int h = key.hashCode();
+		int i = hashSlot( h, mask );
 		
 		// This loop is guaranteed to terminate as long as we never allow the
 		// table to get 100% full.
 		LuaValue k;
-		while ( ( k = hashKeys[i] ) != null && !k.raweq(key) ) {
-			i = ( i + 1 ) % hashKeys.length;
+		while ( ( k = keys[i] ) != null && ( codes[i] != h || !k.raweq(key) ) ) {
+			i = ( i + 1 ) & mask;
 		}
 		return i;
 	}
@@ -561,13 +733,14 @@ public class LuaTable extends LuaValue {
 		if ( hashKeys[ i ] != null ) {
 			
 			int j = i;
-			int n = hashKeys.length; 
-			while ( hashKeys[ j = ( ( j + 1 ) % n ) ] != null ) {
-				final int k = ( ( hashKeys[ j ].hashCode() )& 0x7FFFFFFF ) % n;
+			int mask = hashKeys.length - 1; 
+			while ( hashKeys[ j = ( ( j + 1 ) & mask ) ] != null ) {
+				final int k = hashSlot( hashCodes[ j ], mask );
 				if ( ( j > i && ( k <= i || k > j ) ) ||
 					 ( j < i && ( k <= i && k > j ) ) ) {
 					hashKeys[ i ] = hashKeys[ j ];
 					hashValues[ i ] = hashValues[ j ];
+					hashCodes[ i ] = hashCodes[ j ];
 					i = j;
 				}
 			}
@@ -579,34 +752,42 @@ public class LuaTable extends LuaValue {
 			if ( hashEntries == 0 ) {
 				hashKeys = NOVALS;
 				hashValues = NOVALS;
+				hashCodes = NOHASHES;
 			}
 		}
 	}
 
 	private boolean checkLoadFactor() {
-		// Using a load factor of (n+1) >= 7/8 because that is easy to compute without
-		// overflow or division.
+		// Using a load factor of 3/4, which leaves linear probing runs short 
+		// and is easy to compute without overflow or division.
 		final int hashCapacity = hashKeys.length;
-		return hashEntries >= (hashCapacity - (hashCapacity>>3));
+		return hashEntries >= (hashCapacity - (hashCapacity>>2));
 	}
 
 	private void rehash() {
 		final int oldCapacity = hashKeys.length;
-		final int newCapacity = oldCapacity+(oldCapacity>>2)+MIN_HASH_CAPACITY;
+		final int newCapacity = oldCapacity << 1;
+		final int mask = newCapacity - 1;
 		
 		final LuaValue[] oldKeys = hashKeys;
 		final LuaValue[] oldValues = hashValues;
+		final int[] oldCodes = hashCodes;
 		
-		hashKeys = new LuaValue[ newCapacity ];
-		hashValues = new LuaValue[ newCapacity ];
+		final LuaValue[] keys = hashKeys = new LuaValue[ newCapacity ];
+		final LuaValue[] values = hashValues = new LuaValue[ newCapacity ];
+		final int[] codes = hashCodes = new int[ newCapacity ];
 		
+		// all keys are distinct, so each only needs a free slot
 		for ( int i = 0; i < oldCapacity; ++i ) {
 			final LuaValue k = oldKeys[i];
 			if ( k != null ) {
-				final LuaValue v = oldValues[i];
-				final int slot = hashFindSlot( k );
-				hashKeys[slot] = k;
-				hashValues[slot] = v;
+				final int h = oldCodes[i];
+				int slot = hashSlot( h, mask );
+				while ( keys[slot] != null )
+					slot = ( slot + 1 ) & mask;
+				keys[slot] = k;
+				values[slot] = oldValues[i];
+				codes[slot] = h;
 			}
 		}
 	}
@@ -21,6 +21,12 @@
 ******************************************************************************/
 package org.luaj.vm2;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
 import org.luaj.vm2.lib.DebugLib;
 
 /** 
@@ -50,6 +56,14 @@ import org.luaj.vm2.lib.DebugLib;
  * and this could cause a memory and resource leak.  It is recommended
  * that all coroutines that are created are resumed until they are in 
  * a completed state. 
+ * <p>
+ * Each thread belongs to the {@link LuaState} in which it was created, 
+ * and the running thread and its call stack are tracked per {@link LuaState}. 
+ * <p>
+ * Control is passed between a coroutine and its resumer by parking and 
+ * unparking the two java threads, and the java thread that carries a 
+ * coroutine may be a new thread, a pooled thread, or a virtual thread 
+ * as selected for each {@link LuaState} by {@link #setCoroutineMode(int)}.
  *   
  * @see LuaValue
  * @see JsePlatform
@@ -71,9 +85,34 @@ public class LuaThread extends LuaValue implements Runnable {
 		"normal", 
 		"dead" };
 	
+	/** One new java thread per coroutine */
+	public static final int COROUTINE_PLATFORM_THREADS = 0;
+	
+	/** Coroutines run on a shared pool of daemon threads, reused once a coroutine completes */
+	public static final int COROUTINE_POOLED_THREADS   = 1;
+	
+	/** One virtual thread per coroutine, or pooled threads if virtual threads are not available */
+	public static final int COROUTINE_VIRTUAL_THREADS  = 2;
+	
+	private static final int TURN_RESUMER   = 0;
+	private static final int TURN_COROUTINE = 1;
+	
+	private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+	
+	private static Executor pool;
+	
 	private int status = STATUS_SUSPENDED;
 	
-	private Thread thread;
+	private final int mode;
+	private boolean started;
+	
+	// java thread executing the coroutine, and the one that resumed it
+	private volatile Thread carrier;
+	private Thread resumer;
+	
+	// which side of the coroutine may run 
+	private volatile int turn = TURN_RESUMER;
+	
 	private LuaValue env;
 	private LuaValue func;
 	private Varargs args;
@@ -84,16 +123,34 @@ public class LuaThread extends LuaValue implements Runnable {
 	public final LuaFunction[]     callstack     = new LuaFunction[MAX_CALLSTACK];
 	public int                     calls         = 0;
 
-	private static final LuaThread mainthread = new LuaThread();
+	// register and open upvalue arrays of returned calls for reuse, 
+	// or null if calls may be made on several java threads at once and each needs its own
+	private final FramePool frames;
 	
-	// state of running thread including call stack
-	private static LuaThread       running_thread    = mainthread;
+	// frame pools of java threads calling into a thread that has none of its own 
+	private static final ThreadLocal sharedFrames = new ThreadLocal() {
+		protected Object initialValue() {
+			return new FramePool();
+		}
+	};
+
+	// virtual machine this thread belongs to
+	final LuaState state;
 
 	// thread-local used by DebugLib to store debugging state
 	public Object debugState;
 
 	
-	LuaThread() {		
+	/** 
+	 * Create the main thread of a virtual machine
+	 * @param state the virtual machine
+	 * @param shared true if several java threads may call into the state at once,
+	 * so that each must reuse register arrays from a pool of its own  
+	 */
+	LuaThread(LuaState state, boolean shared) {		
+		this.state = state;
+		this.mode = state.coroutineMode;
+		this.frames = shared? null: new FramePool();
 	}
 	
 	/** 
@@ -104,6 +161,9 @@ public class LuaThread extends LuaValue implements Runnable {
 	public LuaThread(LuaValue func, LuaValue env) {	
 		this.env = env;
 		this.func = func;
+		this.state = LuaState.current();
+		this.mode = state.coroutineMode;
+		this.frames = new FramePool();
 	}
 
 	public int type() {
@@ -143,19 +203,44 @@ public class LuaThread extends LuaValue implements Runnable {
 	}
 
 	/**
-	 * Get the currently running thread. 
+	 * Select how coroutines created from now on in the {@link LuaState} entered 
+	 * by the current java thread are carried by java threads. 
+	 * <p>
+	 * Each state has its own mode, so that virtual machines created side by side 
+	 * can use different modes; a new state uses {@link #COROUTINE_PLATFORM_THREADS}. 
+	 * <p>
+	 * Virtual threads are used only when running on a java version that supports them, 
+	 * otherwise {@link #COROUTINE_VIRTUAL_THREADS} behaves as {@link #COROUTINE_POOLED_THREADS}. 
+	 * @param mode one of {@link #COROUTINE_PLATFORM_THREADS}, {@link #COROUTINE_POOLED_THREADS} 
+	 * or {@link #COROUTINE_VIRTUAL_THREADS}
+	 * @see JsePlatform#standardGlobals(int)
+	 */
+	public static void setCoroutineMode(int mode) {
+		switch ( mode ) {
+		case COROUTINE_PLATFORM_THREADS:
+		case COROUTINE_POOLED_THREADS:
+		case COROUTINE_VIRTUAL_THREADS:
+			LuaState.current().coroutineMode = mode;
+			break;
+		default:
+			throw new IllegalArgumentException("bad coroutine mode: "+mode);
+		}
+	}
+	
+	/**
+	 * Get the currently running thread of the current {@link LuaState}. 
 	 * @return {@link LuaThread} that is currenly running
 	 */
 	public static LuaThread getRunning() {
-		return running_thread;
+		return LuaState.current().running;
 	}
 	
 	/**
-	 * Test if this is the main thread 
+	 * Test if this is the main thread of its virtual machine
 	 * @return true if this is the main thread
 	 */
 	public static boolean isMainThread(LuaThread r) {		
-		return r == mainthread;
+		return r == r.state.mainthread;
 	}
 	
 	/** 
@@ -165,14 +250,14 @@ public class LuaThread extends LuaValue implements Runnable {
 	 * @param globals The global variables for the main ghread. 
 	 */
 	public static void setGlobals(LuaValue globals) {
-		running_thread.env = globals;
+		LuaState.current().running.env = globals;
 	}
 	
 	/** Get the current thread's environment 
 	 * @return {@link LuaValue} containing the global variables of the current thread.
 	 */
 	public static LuaValue getGlobals() {
-		LuaValue e = running_thread.env;
+		LuaValue e = LuaState.current().running.env;
 		return e!=null? e: LuaValue.error("LuaThread.setGlobals() not initialized");
 	}
 
@@ -182,9 +267,20 @@ public class LuaThread extends LuaValue implements Runnable {
 	 * @see DebugLib
 	 */
 	public static final void onCall(LuaFunction function) {
-		running_thread.callstack[running_thread.calls++] = function;
-		if (DebugLib.DEBUG_ENABLED) 
-			DebugLib.debugOnCall(running_thread, running_thread.calls, function);
+		onCall(LuaState.current(), function);
+	}
+	
+	/**
+	 * Callback used at the beginning of a call, by callers that already know the current state
+	 * @param s the {@link LuaState} of the current java thread
+	 * @param function Function being called
+	 * @see #onCall(LuaFunction)
+	 */
+	public static final void onCall(LuaState s, LuaFunction function) {
+		LuaThread t = s.running;
+		t.callstack[t.calls++] = function;
+		if (s.isDebugEnabled()) 
+			DebugLib.debugOnCall(t, t.calls, function);
 	}
 	
 	/**
@@ -192,9 +288,100 @@ public class LuaThread extends LuaValue implements Runnable {
 	 * @see DebugLib
 	 */
 	public static final void onReturn() {
-		running_thread.callstack[--running_thread.calls] = null;
-		if (DebugLib.DEBUG_ENABLED) 
-			DebugLib.debugOnReturn(running_thread, running_thread.calls);
+		onReturn(LuaState.current());
+	}
+	
+	/**
+	 * Callback used at the end of a call, by callers that already know the current state
+	 * @param s the {@link LuaState} of the current java thread
+	 * @see #onReturn()
+	 */
+	public static final void onReturn(LuaState s) {
+		LuaThread t = s.running;
+		t.callstack[--t.calls] = null;
+		if (s.isDebugEnabled()) 
+			DebugLib.debugOnReturn(t, t.calls);
+	}
+
+	/**
+	 * Get the coroutine whose frame pool should be used for a call
+	 * @param s the {@link LuaState} of the current java thread
+	 * @return the running {@link LuaThread}, or null if frames must not be reused 
+	 * because the debug library may still refer to them
+	 * @see #newFrame(int)
+	 */
+	static final LuaThread framePool(LuaState s) {
+		return s.isDebugEnabled()? null: s.running;
+	}
+
+	/**
+	 * Get a register array for a call made at the current call depth, 
+	 * reusing the array of the previous call at that depth if it is large enough.
+	 * @param size the number of registers needed
+	 * @return array of at least {@code size} elements, all {@link LuaValue#NIL}
+	 * @see #releaseFrame(LuaValue[], int)
+	 */
+	final LuaValue[] newFrame(int size) {
+		FramePool p = framePool();
+		LuaValue[] f;
+		if ( p.registers == null )
+			p.registers = new LuaValue[MAX_CALLSTACK][];
+		else if ( (f = p.registers[calls]) != null && f.length >= size ) {
+			p.registers[calls] = null;
+			return f;
+		}
+		f = new LuaValue[size];
+		System.arraycopy(NILS, 0, f, 0, size);
+		return f;
+	}
+
+	/**
+	 * Return a register array obtained from {@link #newFrame(int)} once the call has returned.
+	 * <p>
+	 * The caller must ensure nothing refers to the array any longer, 
+	 * in particular that no {@link Varargs} returned by the call is a view of it. 
+	 * @param frame the register array
+	 * @param size the number of registers that may have been used
+	 */
+	final void releaseFrame(LuaValue[] frame, int size) {
+		System.arraycopy(NILS, 0, frame, 0, size);
+		framePool().registers[calls] = frame;
+	}
+
+	/**
+	 * Get an array to hold the open upvalues of a call at the current call depth
+	 * @param size the number of registers of the call
+	 * @return array of at least {@code size} elements, all null
+	 */
+	public final UpValue[] newUpValues(int size) {
+		FramePool p = framePool();
+		UpValue[] u;
+		if ( p.upvalues == null )
+			p.upvalues = new UpValue[MAX_CALLSTACK][];
+		else if ( (u = p.upvalues[calls]) != null && u.length >= size ) {
+			p.upvalues[calls] = null;
+			return u;
+		}
+		return new UpValue[size];
+	}
+
+	/**
+	 * Return an array obtained from {@link #newUpValues(int)} once all its upvalues are closed and cleared
+	 * @param openups the array of open upvalues, all null
+	 */
+	public final void releaseUpValues(UpValue[] openups) {
+		framePool().upvalues[calls] = openups;
+	}
+
+	/** Get the pool of this thread, or the one of the current java thread if this thread has none */
+	private FramePool framePool() {
+		return frames!=null? frames: (FramePool) sharedFrames.get();
+	}
+
+	/** Register and open upvalue arrays of returned calls, by call depth */
+	private static final class FramePool {
+		LuaValue[][] registers;
+		UpValue[][] upvalues;
 	}
 
 	/**
@@ -203,7 +390,7 @@ public class LuaThread extends LuaValue implements Runnable {
 	 * @see DebugLib
 	 */
 	public static int getCallstackDepth() {
-		return running_thread.calls;
+		return LuaState.current().running.calls;
 	}
 
 	/**
@@ -212,23 +399,26 @@ public class LuaThread extends LuaValue implements Runnable {
 	 * @return LuaFunction on the call stack, or null if outside of range of active stack
 	 */
 	public static final LuaFunction getCallstackFunction(int level) {
-		return level>0 && level<=running_thread.calls? 
-			running_thread.callstack[running_thread.calls-level]:
+		LuaThread t = LuaState.current().running;
+		return level>0 && level<=t.calls? 
+			t.callstack[t.calls-level]:
 			null;
 	}
 
 	public void run() {
-		synchronized ( this ) {
-			try {
-				this.args = func.invoke(this.args);
-				status = STATUS_DEAD;
-			} catch ( Throwable t ) {
-				String msg = t.getMessage();
-				this.args = valueOf(msg!=null? msg: t.toString());
-				status = STATUS_ERROR;
-			} finally {
-				this.notify();
-			}
+		carrier = Thread.currentThread();
+		LuaState prior = state.enter();
+		try {
+			this.args = func.invoke(this.args);
+			status = STATUS_DEAD;
+		} catch ( Throwable t ) {
+			String msg = t.getMessage();
+			this.args = valueOf(msg!=null? msg: t.toString());
+			status = STATUS_ERROR;
+		} finally {
+			prior.enter();
+			carrier = null;
+			handoff( TURN_RESUMER, resumer );
 		}
 	}
 	
@@ -238,22 +428,21 @@ public class LuaThread extends LuaValue implements Runnable {
 	 * @return {@link Varargs} provided as arguments to {@link #resume(Varargs)}
 	 */
 	public Varargs yield(Varargs args) {
-		synchronized ( this ) {
-			if ( status != STATUS_RUNNING )
-				error(this+" not running");
-			status = STATUS_SUSPENDED;
-			this.args = args;
-			this.notify();
-			try {
-				this.wait();
-				status = STATUS_RUNNING;
-				return this.args;
-			} catch ( InterruptedException e ) {
+		if ( status != STATUS_RUNNING )
+			error(this+" not running");
+		status = STATUS_SUSPENDED;
+		this.args = args.unshare(null);
+		handoff( TURN_RESUMER, resumer );
+		while ( turn != TURN_COROUTINE ) {
+			LockSupport.park(this);
+			if ( Thread.interrupted() ) {
 				status = STATUS_DEAD;
 				error( "thread interrupted" );
 				return NONE;
 			}
 		}
+		status = STATUS_RUNNING;
+		return this.args;
 	}
 
 	/** Start or resume this thread 
@@ -262,55 +451,119 @@ public class LuaThread extends LuaValue implements Runnable {
 	 * @return {@link Varargs} provided as arguments to {@link #yield(Varargs)}
 	 */
 	public Varargs resume(Varargs args) {
+		if ( status == STATUS_DEAD ) {
+			return varargsOf(FALSE, valueOf("cannot resume dead coroutine"));
+		}
+		if ( status != STATUS_SUSPENDED ) {
+			return varargsOf(FALSE, valueOf("cannot resume non-suspended coroutine"));
+		}
+		
+		// set prior thread to normal status while we are running
+		LuaThread prior = state.running;
+		boolean interrupted = false;
+		try {
+			// set our status to running
+			prior.status = STATUS_NORMAL;
+			state.running = this;
+			this.status = STATUS_RUNNING;
+			
+			// copy args in, as the registers they may be a view of can be reused while we are suspended
+			this.args = args.unshare(null);
+			this.resumer = Thread.currentThread();
 
-		synchronized ( this ) {
- 			if ( status == STATUS_DEAD ) {
- 				return varargsOf(FALSE, valueOf("cannot resume dead coroutine"));
+			// start the thread, or hand control back to it
+			if ( !started ) {
+				started = true;
+				turn = TURN_COROUTINE;
+				start( this, mode );
+			} else {
+				handoff( TURN_COROUTINE, carrier );
+			}
+			
+			// run this vm until it yields
+			while ( turn != TURN_RESUMER ) {
+				LockSupport.park(this);
+				if ( Thread.interrupted() )
+					interrupted = true;
 			}
 			
-			// set prior thread to normal status while we are running
-			LuaThread prior = running_thread;
+			// copy return values from yielding stack state
+			if ( status == STATUS_ERROR ) {
+				status = STATUS_DEAD;
+				return varargsOf(FALSE, this.args);
+			} else {
+				return varargsOf(TRUE, this.args);
+			}
+
+		} catch ( Throwable t ) {
+			status = STATUS_DEAD;
+			return varargsOf(FALSE, valueOf("thread: "+t));
+			
+		} finally {
+			// previous thread is now running again
+			state.running = prior;
+			prior.status = STATUS_RUNNING;
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/** 
+	 * Pass control to the other side of this coroutine.
+	 * <p>
+	 * Everything written before the call is visible to the other side 
+	 * once it observes the new value of {@link #turn}.
+	 * @param to {@link #TURN_COROUTINE} or {@link #TURN_RESUMER}
+	 * @param target the java thread waiting for its turn
+	 */
+	private void handoff(int to, Thread target) {
+		turn = to;
+		LockSupport.unpark(target);
+	}
+
+	/**
+	 * Start a java thread of the kind selected by the mode to carry a coroutine.
+	 * @param coroutine the coroutine to run 
+	 * @param mode one of the COROUTINE_ mode constants
+	 */
+	private static void start(Runnable coroutine, int mode) {
+		if ( mode == COROUTINE_VIRTUAL_THREADS && START_VIRTUAL_THREAD != null ) {
 			try {
-				// set our status to running
-				prior.status = STATUS_NORMAL;
-				running_thread = this;
-				this.status = STATUS_RUNNING;
-				
-				// copy args in
-				this.args = args;
+				START_VIRTUAL_THREAD.invoke(null, new Object[] { coroutine });
+				return;
+			} catch ( Exception e ) {
+				// fall back to pooled threads
+			}
+		}
+		switch ( mode ) {
+		case COROUTINE_VIRTUAL_THREADS:
+		case COROUTINE_POOLED_THREADS:
+			pool().execute(coroutine);
+			return;
+		default:
+			new Thread(coroutine).start();
+		}
+	}
 
-				// start the thread
-				if ( thread == null ) { 
-					thread = new Thread(this);
-					thread.start();
+	/** Shared pool of daemon threads used by {@link #COROUTINE_POOLED_THREADS} */
+	private static synchronized Executor pool() {
+		if ( pool == null ) 
+			pool = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "luaj-coroutine");
+					t.setDaemon(true);
+					return t;
 				}
-				
-				// run this vm until it yields
-				this.notify();
-				this.wait();
-				
-				// copy return values from yielding stack state
-				if ( status == STATUS_ERROR ) {
-					status = STATUS_DEAD;
-					return varargsOf(FALSE, this.args);
-				} else {
-					return varargsOf(TRUE, this.args);
-				}
-	
-			} catch ( Throwable t ) {
-				status = STATUS_DEAD;
-				try {
-					return varargsOf(FALSE, valueOf("thread: "+t));
-				} finally {
-					this.notify();
-				}
-				
-			} finally {
-				// previous thread is now running again
-				running_thread = prior;
-				prior.status = STATUS_RUNNING;
-			}
+			});
+		return pool;
+	}
+
+	/** Look up {@code Thread.startVirtualThread}, which exists on Java 21 and later */
+	private static Method findStartVirtualThread() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", new Class[] { Runnable.class });
+		} catch ( Exception e ) {
+			return null;
 		}
-		
 	}
 }
@@ -24,7 +24,8 @@ package org.luaj.vm2;
 
 public class LuaUserdata extends LuaValue {
 	
-	public final Object m_instance;
+	// only replaced when a wrapper is explicitly reused for another object
+	public Object m_instance;
 	public LuaValue m_metatable;
 	
 	public LuaUserdata(Object obj) {
@@ -1128,6 +1128,24 @@ public class LuaValue extends Varargs {
 	 * @see #rawget(LuaValue)
 	 */
 	public LuaValue get( LuaValue key ) { return gettable(this,key); }
+
+	/** Get a value in a table including metatag processing, remembering where it was found.
+	 * <p>
+	 * Used by table lookup instructions, which may pass the same cache and index
+	 * each time they are executed so that repeated lookups of the same key
+	 * in the same table need not hash the key.
+	 * Only tables make use of the cache, other values behave as for {@link #get(LuaValue)}.
+	 * @param key the key to look up, must not be {@link NIL} or null
+	 * @param cache the inline cache of the executing {@link Prototype}
+	 * @param index the index of the entry in {@code cache} belonging to the instruction
+	 * @return {@link LuaValue} for that key, or {@link NIL} if not found and no metatag
+	 * @throws LuaError if {@code this} is not a table,
+	 * or there is no {@link INDEX} metatag,  
+	 * or key is {@link NIL} 
+	 * @see #get(LuaValue)
+	 * @see InlineCache
+	 */
+	public LuaValue get( LuaValue key, InlineCache[] cache, int index ) { return get(key); }
 	
 	/** Get a value in a table including metatag processing using {@link INDEX}.
 	 * @param key the key to look up
@@ -1746,6 +1764,33 @@ public class LuaValue extends Varargs {
 	 */
 	public Varargs invoke(LuaValue arg,Varargs varargs) { return invoke(varargsOf(arg,varargs)); }
 
+	/** Call {@link this} as the iterator of a generic {@code for} loop, 
+	 * storing the results directly in the registers of the loop.
+	 * <p>
+	 * This is the {@code TFORLOOP} instruction:
+	 * {@code R(a+3), ... ,R(a+2+c) := this(R(a+1), R(a+2)): if R(a+3) ~= nil then R(a+2)=R(a+3)}. 
+	 * Iterators that know their results can override this to avoid allocating 
+	 * a {@link Varargs} on every step, 
+	 * as the {@code next} and {@code inext} functions of {@link BaseLib} do for tables.
+	 * @param stack the registers of the calling function
+	 * @param a the register holding the iterator, followed by the state and control variable
+	 * @param c the number of loop variables
+	 * @return true if the loop continues, false if the first result was nil
+	 * @throws LuaError if not a function and {@link CALL} is not defined, 
+	 * or the invoked function throws a {@link LuaError} 
+	 * @see LuaTable#nextStep(LuaValue[], int, int)
+	 */
+	public boolean iterate(LuaValue[] stack, int a, int c) {
+		Varargs v = invoke(varargsOf(stack[a+1],stack[a+2]));
+		LuaValue o = v.arg1();
+		if ( o.isnil() )
+			return false;
+		stack[a+2] = stack[a+3] = o;
+		for ( ; c>1; --c )
+			stack[a+2+c] = v.arg(c);
+		return true;
+	}
+
 	/** Call {@link this} with variable arguments, including metatag processing, 
 	 * and retain all return values in a {@link Varargs}.
 	 * <p>
@@ -3401,6 +3446,7 @@ public class LuaValue extends Varargs {
 		switch ( v.length ) {
 		case 0: return r;
 		case 1: return new PairVarargs(v[0],r);
+		case 2: return new TripleVarargs(v[0],v[1],r);
 		default: return new ArrayVarargs(v,r);
 		}
 	}
@@ -3419,6 +3465,7 @@ public class LuaValue extends Varargs {
 		case 0: return NONE;
 		case 1: return v[offset];
 		case 2: return new PairVarargs(v[offset+0],v[offset+1]);
+		case 3: return new TripleVarargs(v[offset+0],v[offset+1],v[offset+2]);
 		default: return new ArrayPartVarargs(v,offset,length);
 		}
 	}
@@ -3437,6 +3484,7 @@ public class LuaValue extends Varargs {
 		switch ( length ) {
 		case 0: return more;
 		case 1: return new PairVarargs(v[offset],more);
+		case 2: return new TripleVarargs(v[offset],v[offset+1],more);
 		default: return new ArrayPartVarargs(v,offset,length,more);
 		}
 	}
@@ -3472,7 +3520,7 @@ public class LuaValue extends Varargs {
 	public static Varargs varargsOf(LuaValue v1,LuaValue v2,Varargs v3) { 
 		switch ( v3.narg() ) {
 		case 0: return new PairVarargs(v1,v2);
-		default: return new ArrayVarargs(new LuaValue[] {v1,v2},v3); 
+		default: return new TripleVarargs(v1,v2,v3); 
 		}
 	}
 	
@@ -3559,6 +3607,17 @@ public class LuaValue extends Varargs {
 			return v.length+r.narg();
 		}
 		public LuaValue arg1() { return v.length>0? v[0]: r.arg1(); }
+		public Varargs subargs(int start) {
+			if ( start == 1 )
+				return this;
+			if ( start > v.length )
+				return r.subargs(start-v.length);
+			return LuaValue.varargsOf(v, start-1, v.length-start+1, r);
+		}
+		Varargs unshare(LuaValue[] frame) {
+			Varargs u = r.unshare(frame);
+			return u==r? this: new ArrayVarargs(v,u);
+		}
 	}
 
 	/** Varargs implemenation backed by an array of LuaValues 
@@ -3609,6 +3668,22 @@ public class LuaValue extends Varargs {
 		public LuaValue arg1() { 
 			return length>0? v[offset]: more.arg1(); 
 		}
+		public Varargs subargs(int start) {
+			if ( start == 1 )
+				return this;
+			if ( start > length )
+				return more.subargs(start-length);
+			return LuaValue.varargsOf(v, offset+start-1, length-start+1, more);
+		}
+		Varargs unshare(LuaValue[] frame) {
+			Varargs u = more.unshare(frame);
+			if ( frame == null || frame == v ) {
+				LuaValue[] c = new LuaValue[length];
+				System.arraycopy(v, offset, c, 0, length);
+				return new ArrayVarargs(c,u);
+			}
+			return u==more? this: new ArrayPartVarargs(v,offset,length,u);
+		}
 	}
 
 	/** Varargs implemenation backed by two values.  
@@ -3641,6 +3716,65 @@ public class LuaValue extends Varargs {
 		public LuaValue arg1() { 
 			return v1; 
 		}
+		public Varargs subargs(int start) {
+			return start==1? this: start==2? v2: v2.subargs(start-1);
+		}
+		Varargs unshare(LuaValue[] frame) {
+			Varargs u = v2.unshare(frame);
+			return u==v2? this: new PairVarargs(v1,u);
+		}
+	}
+
+	/** Varargs implemenation backed by three values, 
+	 * avoiding the array otherwise needed for more than two values. 
+	 * <p>
+	 * This is an internal class not intended to be used directly.
+	 * Instead use the corresponding static methods on LuaValue. 
+	 *  
+	 * @see LuaValue#varargsOf(LuaValue, LuaValue, Varargs)
+	 * @see LuaValue#varargsOf(LuaValue[], int, int)
+	 */
+	static final class TripleVarargs extends Varargs {
+		private final LuaValue v1;
+		private final LuaValue v2;
+		private final Varargs v3;
+		/** Construct a Varargs from two LuaValue and the values following them. 
+		 * <p>
+		 * This is an internal class not intended to be used directly.
+		 * Instead use the corresponding static methods on LuaValue. 
+		 *  
+		 * @see LuaValue#varargsOf(LuaValue, LuaValue, Varargs)
+		 */
+		TripleVarargs(LuaValue v1, LuaValue v2, Varargs v3) {
+			this.v1 = v1;
+			this.v2 = v2;
+			this.v3 = v3;
+		}
+		public LuaValue arg(int i) {
+			switch ( i ) {
+			case 1: return v1;
+			case 2: return v2;
+			default: return v3.arg(i-2);
+			}
+		}
+		public int narg() {
+			return 2+v3.narg();
+		}
+		public LuaValue arg1() { 
+			return v1; 
+		}
+		public Varargs subargs(int start) {
+			switch ( start ) {
+			case 1: return this;
+			case 2: return v3.narg()==0? (Varargs) v2: new PairVarargs(v2,v3);
+			case 3: return v3;
+			default: return v3.subargs(start-2);
+			}
+		}
+		Varargs unshare(LuaValue[] frame) {
+			Varargs u = v3.unshare(frame);
+			return u==v3? this: new TripleVarargs(v1,v2,u);
+		}
 	}
 
 }
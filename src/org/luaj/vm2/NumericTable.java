@@ -0,0 +1,267 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.util.Arrays;
+
+/**
+ * Subclass of {@link LuaTable} that keeps a list of numbers unboxed.
+ * <p>
+ * While the array part holds only numbers without holes, 
+ * they are stored in an {@code int[]}, or a {@code double[]} once 
+ * a number that is not an integer is stored, 
+ * and a {@link LuaNumber} is created only when an element is read.
+ * This takes a fraction of the memory of a {@link LuaTable} holding 
+ * the same numbers, and gives the garbage collector nothing to trace, 
+ * which suits large buffers of numbers that live long and are read seldom. 
+ * <p>
+ * The first time anything else is stored in the array part, 
+ * such as a string or a nil that leaves a hole, 
+ * the table changes to the ordinary representation of {@link LuaTable}, 
+ * and behaves exactly like one from then on. 
+ * The hash part is not affected.
+ * <p>
+ * Normally these are created from lua by calling {@code table.numeric(n)}. 
+ * 
+ * @see LuaTable
+ * @see org.luaj.vm2.lib.TableLib
+ */
+public class NumericTable extends LuaTable {
+	private static final int MIN_CAPACITY = 4;
+
+	/** the array values while they are all integers, or null */
+	private int[] ints;
+
+	/** the array values while they are all numbers and some are not integers, or null */
+	private double[] doubles;
+
+	/** the number of array values, at keys 1 to n, while numeric */
+	private int n;
+
+	/** 
+	 * Construct an empty table that holds numbers unboxed
+	 * @param narray capacity of the array part 
+	 */
+	public NumericTable(int narray) {
+		ints = new int[Math.max(narray, MIN_CAPACITY)];
+	}
+
+	/** 
+	 * Test if the array part is still stored unboxed
+	 * @return true if numeric, false once the table has changed to the ordinary representation
+	 */
+	public boolean isNumeric() {
+		return ints != null || doubles != null;
+	}
+
+	public void presize( int narray ) {
+		if ( ints != null ) {
+			if ( narray > ints.length )
+				ints = copyOf(ints, narray);
+		} else if ( doubles != null ) {
+			if ( narray > doubles.length )
+				doubles = copyOf(doubles, narray);
+		} else {
+			super.presize(narray);
+		}
+	}
+
+	protected int getArrayLength() {
+		return isNumeric()? n: super.getArrayLength();
+	}
+
+	public LuaValue rawget( int key ) {
+		if ( key>0 && key<=n ) {
+			if ( ints != null )
+				return LuaInteger.valueOf(ints[key-1]);
+			if ( doubles != null )
+				return LuaDouble.valueOf(doubles[key-1]);
+		}
+		return super.rawget(key);
+	}
+
+	public LuaValue rawget( LuaValue key ) {
+		if ( key.isinttype() )
+			return rawget(key.toint());
+		return super.rawget(key);
+	}
+
+	public void rawset( int key, LuaValue value ) {
+		if ( !isNumeric() || !numericset(key, value) )
+			super.rawset(key, value);
+	}
+
+	public void rawset( LuaValue key, LuaValue value ) {
+		if ( !key.isinttype() || !isNumeric() || !numericset(key.toint(), value) )
+			super.rawset(key, value);
+	}
+
+	/** 
+	 * Store an element of the array part while numeric, changing representation if necessary
+	 * @return true if stored, false if the key belongs in the hash part 
+	 * or the table is no longer numeric
+	 */
+	private boolean numericset( int key, LuaValue value ) {
+		if ( key<=0 || key>n+1 )
+			return false;
+		if ( value.isnil() ) {
+			if ( key == n ) {
+				--n;
+				return true;
+			}
+			if ( key <= n )
+				unbox(); // would leave a hole
+			return false;
+		}
+		if ( value.type() != TNUMBER ) {
+			unbox();
+			return false;
+		}
+		put(key, value);
+		if ( key == n && hashEntries > 0 )
+			collect();
+		return true;
+	}
+
+	/** Store a number at a key from 1 to n+1, removing any entry for the key from the hash part */
+	private void put( int key, LuaValue value ) {
+		if ( key > n ) {
+			if ( hashEntries > 0 )
+				hashset(LuaInteger.valueOf(key), NIL);
+			if ( key > capacity() )
+				presize(Math.max(MIN_CAPACITY, n*2));
+			n = key;
+		}
+		if ( ints != null ) {
+			if ( value.isinttype() ) {
+				ints[key-1] = value.toint();
+				return;
+			}
+			doubles = new double[ints.length];
+			for ( int i=0; i<n; i++ )
+				doubles[i] = ints[i];
+			ints = null;
+		}
+		doubles[key-1] = value.todouble();
+	}
+
+	private int capacity() {
+		return ints != null? ints.length: doubles.length;
+	}
+
+	/** Move numbers from the hash part that now continue the array part */
+	private void collect() {
+		for ( LuaValue v; !(v = hashget(LuaInteger.valueOf(n+1))).isnil() && v.type() == TNUMBER; )
+			put(n+1, v);
+	}
+
+	/** Change to the ordinary {@link LuaTable} representation of the array part */
+	private void unbox() {
+		// exactly n, as integer keys beyond n may be in the hash part
+		LuaValue[] a = n>0? new LuaValue[n]: NOVALS;
+		for ( int i=0; i<n; i++ )
+			a[i] = ints != null? LuaInteger.valueOf(ints[i]): LuaDouble.valueOf(doubles[i]);
+		ints = null;
+		doubles = null;
+		n = 0;
+		array = a;
+	}
+
+	public Varargs next( LuaValue key ) {
+		if ( !isNumeric() )
+			return super.next(key);
+		int i = 0;
+		if ( !key.isnil() ) {
+			if ( !key.isinttype() || (i = key.toint()) <= 0 || i > n ) {
+				Varargs e = super.next(key);
+				while ( inArray(e.arg1()) )
+					e = super.next(e.arg1());
+				return e;
+			}
+		}
+		if ( i < n )
+			return varargsOf(LuaInteger.valueOf(i+1), rawget(i+1));
+		Varargs e = super.next(NIL);
+		while ( inArray(e.arg1()) )
+			e = super.next(e.arg1());
+		return e;
+	}
+
+	public boolean nextStep( LuaValue[] stack, int a, int c ) {
+		if ( !isNumeric() )
+			return super.nextStep(stack, a, c);
+		LuaValue key = stack[a+2];
+		int i = 0;
+		if ( !key.isnil() ) {
+			if ( !key.isinttype() || (i = key.toint()) <= 0 || i > n )
+				return hashStep(super.nextStep(stack, a, c), stack, a, c);
+		}
+		if ( i < n )
+			return loopset(LuaInteger.valueOf(i+1), rawget(i+1), stack, a, c);
+		// the array part of the superclass is empty, so index 0 is the first slot of the hash part
+		return hashStep(nextStep(0, stack, a, c), stack, a, c);
+	}
+
+	/** Continue a step into the hash part past integer keys the numeric array part holds */
+	private boolean hashStep( boolean found, LuaValue[] stack, int a, int c ) {
+		while ( found && inArray(stack[a+2]) )
+			found = super.nextStep(stack, a, c);
+		return found;
+	}
+
+	/** Test if a key is one of 1 to n, which the numeric array part holds rather than the hash part */
+	private boolean inArray( LuaValue key ) {
+		if ( !key.isinttype() )
+			return false;
+		int i = key.toint();
+		return i > 0 && i <= n;
+	}
+
+	public int maxn() {
+		return isNumeric()? Math.max(n, super.maxn()): super.maxn();
+	}
+
+	public void sort(LuaValue comparator) {
+		if ( isNumeric() && comparator.isnil() ) {
+			if ( ints != null )
+				Arrays.sort(ints, 0, n);
+			else
+				Arrays.sort(doubles, 0, n);
+			return;
+		}
+		if ( isNumeric() )
+			unbox();
+		super.sort(comparator);
+	}
+
+	private static int[] copyOf(int[] a, int length) {
+		int[] b = new int[length];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static double[] copyOf(double[] a, int length) {
+		double[] b = new double[length];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
@@ -51,6 +51,8 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* inline caches for table lookups, one per instruction, created on first use */
+	public InlineCache[] icache;
 
 	
 	public String toString() {
@@ -498,6 +498,9 @@ public abstract class Varargs {
 
 	/**
 	 * Create a {@code Varargs} instance containing arguments starting at index {@code start}
+	 * <p>
+	 * The result is a view of these arguments rather than a copy of them, 
+	 * so it is cheap enough to call on every invocation.
 	 * @param start the index from which to include arguments, where 1 is the first argument.
 	 * @return Varargs containing argument { start, start+1,  ... , narg-start-1 }
 	 */
@@ -510,6 +513,18 @@ public abstract class Varargs {
 		return end<start? (Varargs) LuaValue.NONE: new SubVarargs(this,start,end); 
 	}
 
+	/**
+	 * Get these values in a form that stays valid when a register array is reused.
+	 * <p>
+	 * Views of the registers, such as the arguments of a call or parts of them,
+	 * are copied, and other values returned as they are. 
+	 * @param frame the register array that will be reused, or null for any array
+	 * @return this, or a copy of it if some of its values are read from {@code frame}
+	 */
+	Varargs unshare(LuaValue[] frame) {
+		return this;
+	}
+
 	/**
 	 * Implementation of Varargs for use in the Varargs.subargs() function.
 	 * @see Varargs#subargs(int)
@@ -533,5 +548,19 @@ public abstract class Varargs {
 		public int narg() {
 			return end+1-start;
 		}
+		public Varargs subargs(final int start) {
+			if ( start == 1 )
+				return this;
+			int s = this.start+start-1;
+			switch ( end-s ) {
+			case 0: return v.arg(s);
+			case 1: return new LuaValue.PairVarargs(v.arg(s),v.arg(end));
+			}
+			return end<s? (Varargs) LuaValue.NONE: new SubVarargs(v,s,end); 
+		}
+		Varargs unshare(LuaValue[] frame) {
+			Varargs u = v.unshare(frame);
+			return u==v? this: new SubVarargs(u,start,end);
+		}
 	}
 }
@@ -144,6 +144,10 @@ public class WeakTable extends LuaTable {
 	}
 	
 
+	public LuaValue get( LuaValue key, InlineCache[] cache, int index ) {
+		return get(key);
+	}
+
 	public LuaValue rawget( int key ) {
 		return super.rawget(key).strongvalue();
 	}
@@ -169,7 +173,8 @@ public class WeakTable extends LuaTable {
 	
 	// override to remove values for weak keys as we search
 	public int hashFindSlot(LuaValue key) {		
-		int i = ( key.hashCode() & 0x7FFFFFFF ) % hashKeys.length;
+		final int h = key.hashCode();
+		int i = hashSlot( h, hashKeys.length - 1 );
 		LuaValue k;
 		while ( ( k = hashKeys[i] ) != null ) {
 			if ( k.isweaknil() ) {
@@ -178,9 +183,9 @@ public class WeakTable extends LuaTable {
 					return 0;
 			}
 			else {
-				if ( k.raweq(key) )
+				if ( hashCodes[i] == h && k.raweq(key) )
 					return i;
-				i = ( i + 1 ) % hashKeys.length;
+				i = ( i + 1 ) & ( hashKeys.length - 1 );
 			}
 		}
 		return i;
@@ -211,6 +216,13 @@ public class WeakTable extends LuaTable {
 		}
 	}
 	
+	// the slots also hold weak references, so step by next() which resolves them
+	public boolean nextStep( LuaValue[] stack, int a, int c ) {
+		Varargs n = next(stack[a+2]);
+		LuaValue k = n.arg1();
+		return !k.isnil() && loopset(k, n.arg(2), stack, a, c);
+	}
+
 	// ----------------- sort support -----------------------------
 	public void sort(final LuaValue comparator) {
 		super.sort( new TwoArgFunction() {
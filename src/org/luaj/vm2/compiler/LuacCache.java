@@ -0,0 +1,221 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.LoadState.LuaCompiler;
+import org.luaj.vm2.luajc.LuaJC;
+
+/**
+ * Implementation of {@link LuaCompiler} which keeps the prototypes of compiled 
+ * files in a directory of precompiled chunks, 
+ * so that a file which has not changed since it was last compiled,
+ * possibly by an earlier run of the program, is loaded without being parsed.
+ * <p>
+ * Only chunks named after a file, that is with names starting with {@code "@"}
+ * such as those loaded by {@code dofile}, {@code loadfile} and {@code require}, are cached.
+ * Each is kept in a file named after a hash of the chunk name, 
+ * holding a hash of the source and of the version of the compiler
+ * followed by the chunk as written by {@link DumpState}.
+ * A cached chunk is used only if both hashes match, and is otherwise compiled
+ * again and replaced, so editing a file or upgrading luaj never runs stale code.
+ * <p>
+ * The prototypes are turned into functions by the compiler which was installed before,
+ * either {@link LuaC} or {@link LuaJC}; chunks for any other compiler are not cached.
+ * Failing to read or write the cache is not an error, the file is just compiled.
+ * <p>
+ * To install the cache, call {@link #install(File)} after
+ * the globals have been created and the compiler chosen, for example:
+ * <pre> {@code
+ * LuaValue _G = JsePlatform.standardGlobals();
+ * LuacCache.install(new File(".luac"));
+ * _G.get("dofile").call(LuaValue.valueOf("main.lua"));
+ * } </pre>
+ *
+ * @see LuaCompiler
+ * @see DumpState
+ * @see LoadState#loadBinaryChunk(int, InputStream, String)
+ */
+public class LuacCache implements LuaCompiler {
+
+	/** Identifies cache files, and the compiler and chunk format they were written by */
+	private static final String VERSION = "luacache 1 "+Lua._VERSION+" "+LoadState.LUAC_VERSION+"."+LoadState.LUAC_FORMAT;
+
+	/** Length of the hashes */
+	private static final int HASH_SIZE = 20;
+
+	/** Cache most recently installed */
+	private static LuacCache installed;
+
+	/** Compiler used to load chunks that are not cached */
+	private final LuaCompiler compiler;
+
+	/** Directory of cached chunks */
+	private final File dir;
+
+	/**
+	 * Install a cache in front of the compiler currently used by {@link LoadState}.
+	 * <p>
+	 * Installing it again with the same compiler and directory keeps the same instance,
+	 * so that files already compiled by {@link org.luaj.vm2.lib.BaseLib#loadFile(String)} 
+	 * are not compiled again for a new set of globals.
+	 * @param dir the directory of cached chunks, created if it does not exist
+	 */
+	public static synchronized void install(File dir) {
+		LuaCompiler c = LoadState.compiler;
+		if ( c instanceof LuacCache )
+			c = ((LuacCache) c).compiler;
+		if ( installed == null || installed.compiler != c || ! installed.dir.equals(dir) )
+			installed = new LuacCache(c, dir);
+		dir.mkdirs();
+		LoadState.compiler = installed;
+	}
+
+	private LuacCache(LuaCompiler compiler, File dir) {
+		this.compiler = compiler;
+		this.dir = dir;
+	}
+
+	public LuaFunction load(InputStream stream, String name, LuaValue env) throws IOException {
+		if ( ! name.startsWith("@") || ! (compiler == LuaC.instance || compiler == LuaJC.instance) )
+			return compiler.load(stream, name, env);
+		byte[] source = readAll(stream);
+		if ( source.length > 0 && source[0] == '\033' )
+			return compiler.load(new ByteArrayInputStream(source), name, env);
+		File file = new File(dir, hex(hash(name.getBytes("UTF-8")))+".luac");
+		byte[] hash = hash(source, name);
+		Prototype p = read(file, hash, name);
+		if ( p == null ) {
+			p = LuaC.compile(new ByteArrayInputStream(source), name);
+			write(file, hash, p);
+		}
+		return compiler == LuaJC.instance? 
+				LuaJC.instance.load(p, name, env): 
+				new LuaClosure(p, env);
+	}
+
+	/** Read the cached chunk, or return null if it is missing, out of date or unreadable */
+	private static Prototype read(File file, byte[] hash, String name) {
+		if ( ! file.isFile() )
+			return null;
+		try {
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if ( ! VERSION.equals(is.readUTF()) )
+					return null;
+				byte[] h = new byte[HASH_SIZE];
+				is.readFully(h);
+				if ( ! Arrays.equals(h, hash) )
+					return null;
+				return LoadState.loadBinaryChunk(is.read(), is, name);
+			} finally {
+				is.close();
+			}
+		} catch ( Exception e ) {
+			return null;
+		}
+	}
+
+	/** Write the chunk to a temporary file and rename it into place, so readers never see part of it */
+	private void write(File file, byte[] hash, Prototype p) {
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("chunk", ".tmp", dir);
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				os.writeUTF(VERSION);
+				os.write(hash);
+				DumpState.dump(p, os, false);
+			} finally {
+				os.close();
+			}
+			if ( ! tmp.renameTo(file) ) {
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch ( IOException e ) {
+			// not cached, compiled again next time
+		} finally {
+			if ( tmp != null && tmp.exists() )
+				tmp.delete();
+		}
+	}
+
+	private static byte[] readAll(InputStream stream) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for ( int n; (n = stream.read(buf)) > 0; )
+			baos.write(buf, 0, n);
+		return baos.toByteArray();
+	}
+
+	/** Hash of the source, the chunk name it is compiled with and the compiler version */
+	private static byte[] hash(byte[] source, String name) throws IOException {
+		MessageDigest md = digest();
+		md.update(VERSION.getBytes("UTF-8"));
+		md.update((byte) 0);
+		md.update(name.getBytes("UTF-8"));
+		md.update((byte) 0);
+		return md.digest(source);
+	}
+
+	private static byte[] hash(byte[] bytes) {
+		return digest().digest(bytes);
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException("no SHA-1: "+e);
+		}
+	}
+
+	private static String hex(byte[] b) {
+		StringBuffer sb = new StringBuffer(b.length*2);
+		for ( int i=0; i<b.length; i++ ) {
+			sb.append(Character.forDigit((b[i]>>4)&0xf, 16));
+			sb.append(Character.forDigit(b[i]&0xf, 16));
+		}
+		return sb.toString();
+	}
+}
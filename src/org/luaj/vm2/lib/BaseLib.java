@@ -23,14 +23,19 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.luaj.vm2.LoadState;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Varargs;
 
 /** 
@@ -354,6 +359,18 @@ public class BaseLib extends OneArgFunction implements ResourceFinder {
 			}
 			return NONE;
 		}
+
+		// step for loops over tables by next or inext without allocating results
+		public boolean iterate(LuaValue[] stack, int a, int c) {
+			LuaValue t = stack[a+1];
+			if ( t instanceof LuaTable ) {
+				switch ( opcode ) {
+				case 21: return ((LuaTable) t).nextStep(stack, a, c);
+				case 22: return ((LuaTable) t).inextStep(stack, a, c);
+				}
+			}
+			return super.iterate(stack, a, c);
+		}
 	}
 
 	public static Varargs pcall(LuaValue func, Varargs args, LuaValue errfunc) {
@@ -366,6 +383,8 @@ public class BaseLib extends OneArgFunction implements ResourceFinder {
 			} finally {
 				thread.err = olderr;
 			}
+		} catch ( LuaState.TimeSliceError e ) {
+			throw e;
 		} catch ( LuaError le ) {
 			String m = le.getMessage();
 			return varargsOf(FALSE, m!=null? valueOf(m): NIL);
@@ -375,16 +394,83 @@ public class BaseLib extends OneArgFunction implements ResourceFinder {
 		}
 	}
 	
+	/** Number of compiled files kept by {@link #loadFile(String)} */
+	private static final int MAX_CHUNKS = 128;
+
+	/** Chunks compiled from files by file name, least recently loaded first */
+	private static final Map chunks = new LinkedHashMap(16, .75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_CHUNKS;
+		}
+	};
+
+	/** 
+	 * Prototype compiled from a file and the class of function made from it, 
+	 * with the stamp of the file and the compiler used, 
+	 * but not the function itself, which would keep its environment reachable
+	 */
+	private static final class Chunk {
+		final long stamp;
+		final LoadState.LuaCompiler compiler;
+		final Prototype p;
+		final Class type;
+		Chunk(long stamp, LoadState.LuaCompiler compiler, LuaClosure f) {
+			this.stamp = stamp;
+			this.compiler = compiler;
+			this.p = f.p;
+			this.type = f.getClass();
+		}
+		/** 
+		 * Create a function like the one first loaded, for another environment
+		 * @return the new function, or null if it cannot be created
+		 */
+		LuaValue instantiate(LuaValue env) {
+			if ( type == LuaClosure.class )
+				return new LuaClosure(p, env);
+			// classes generated by a compiler such as LuaJC have the same constructor
+			try {
+				return (LuaValue) type
+						.getConstructor(new Class[] { Prototype.class, LuaValue.class })
+						.newInstance(new Object[] { p, env });
+			} catch ( Exception e ) {
+				return null;
+			}
+		}
+	}
+
 	/** 
 	 * Load from a named file, returning the chunk or nil,error of can't load
+	 * <p>
+	 * If {@link #FINDER} is a {@link StampedResourceFinder}, 
+	 * files are compiled once, and loading a file again while its stamp 
+	 * and the compiler are unchanged only creates a new function around the same prototype.  
 	 * @return Varargs containing chunk, or NIL,error-text on error
 	 */
 	public static Varargs loadFile(String filename) {
+		long stamp = FINDER instanceof StampedResourceFinder? 
+				((StampedResourceFinder) FINDER).getStamp(filename): 0;
+		if ( stamp != 0 ) {
+			Chunk c;
+			synchronized ( chunks ) {
+				c = (Chunk) chunks.get(filename);
+			}
+			if ( c != null && c.stamp == stamp && c.compiler == LoadState.compiler ) {
+				LuaValue f = c.instantiate(LuaThread.getGlobals());
+				if ( f != null )
+					return f;
+			}
+		}
 		InputStream is = FINDER.findResource(filename);
 		if ( is == null )
 			return varargsOf(NIL, valueOf("cannot open "+filename+": No such file or directory"));
 		try {
-			return loadStream(is, "@"+filename);
+			Varargs v = loadStream(is, "@"+filename);
+			if ( stamp != 0 && v instanceof LuaClosure ) {
+				synchronized ( chunks ) {
+					chunks.put(filename, new Chunk(stamp, LoadState.compiler, (LuaClosure) v));
+				}
+			}
+			return v;
 		} finally {
 			try {
 				is.close();
@@ -36,6 +36,8 @@ import org.luaj.vm2.Varargs;
  * similar to the "Coco" yield-from-anywhere patch available for C-based lua.
  * However, coroutines that are yielded but never resumed to complete their execution
  * may not be collected by the garbage collector. 
+ * The kind of Java thread used, platform, pooled or virtual, 
+ * is selected with {@link LuaThread#setCoroutineMode(int)}.
  * <p> 
  * Typically, this library is included as part of a call to either 
  * {@link JsePlatform#standardGlobals()} or {@link JmePlatform#standardGlobals()}
@@ -74,7 +76,7 @@ public class CoroutineLib extends VarArgFunction {
 			"create", "resume", "running", "status", "yield", "wrap" },
 			CREATE);
 		env.set("coroutine", t);
-		PackageLib.instance.LOADED.set("coroutine", t);
+		PackageLib.getInstance().LOADED.set("coroutine", t);
 		return t;
 	}
 	
@@ -28,6 +28,7 @@ import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaNil;
 import org.luaj.vm2.LuaNumber;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
@@ -69,7 +70,9 @@ public class DebugLib extends VarArgFunction {
 	public static final boolean TRACE = (null != System.getProperty("TRACE"));
 
 	// leave this unset to allow obfuscators to 
-	// remove it in production builds
+	// remove it in production builds.
+	// set once the library is loaded into any virtual machine, 
+	// hooks are only called for a LuaState that has loaded it
 	public static boolean DEBUG_ENABLED;
 
 	static final String[] NAMES = {
@@ -139,10 +142,11 @@ public class DebugLib extends VarArgFunction {
 	
 	private LuaTable init() {
 		DEBUG_ENABLED = true;
+		LuaState.current().debug = true;
 		LuaTable t = new LuaTable();
 		bind(t, DebugLib.class, NAMES, DEBUG);
 		env.set("debug", t);
-		PackageLib.instance.LOADED.set("debug", t);
+		PackageLib.getInstance().LOADED.set("debug", t);
 		return t;
 	}
 	
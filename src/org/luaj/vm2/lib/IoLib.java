@@ -90,6 +90,11 @@ public class IoLib extends OneArgFunction {
 		abstract public int read() throws IOException, EOFException;
 		// return number of bytes read if positive, false if eof, throw IOException on other exception
 		abstract public int read(byte[] bytes, int offset, int length) throws IOException;
+		// read a line without its end of line, or nil at end of file, 
+		// may be overridden by files that can scan their buffer for the end of the line
+		public LuaValue readline() throws IOException {
+			return freaduntil(this,true);
+		}
 		
 		// delegate method access to file methods table
 		public LuaValue get( LuaValue key ) {
@@ -237,7 +242,7 @@ public class IoLib extends OneArgFunction {
 		
 		// return the table
 		env.set("io", t);
-		PackageLib.instance.LOADED.set("io", t);
+		PackageLib.getInstance().LOADED.set("io", t);
 		return t;
 	}
 
@@ -564,7 +569,7 @@ public class IoLib extends OneArgFunction {
 			(LuaValue) LuaString.valueOf(baos.toByteArray());
 	}
 	public static LuaValue freadline(File f) throws IOException {
-		return freaduntil(f,true);
+		return f.readline();
 	}
 	public static LuaValue freadall(File f) throws IOException {
 		int n = f.remaining();
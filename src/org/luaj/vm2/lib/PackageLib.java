@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.PrintStream;
 
 import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
@@ -72,7 +73,9 @@ public class PackageLib extends OneArgFunction {
 	public LuaTable       LOADED;
 	public LuaTable       PACKAGE;
 
-	/** Most recent instance of PackageLib */
+	/** Most recent instance of PackageLib, in whichever {@link LuaState} it was created.
+	 * @deprecated each virtual machine has its own package library, use {@link #getInstance()} */
+	@Deprecated
 	public static PackageLib instance;
 	
 	/** Loader that loads from preload table if found there */
@@ -108,7 +111,16 @@ public class PackageLib extends OneArgFunction {
 		instance = this;
 	}
 
+	/**
+	 * Get the package library of the current virtual machine
+	 * @return the {@link PackageLib} most recently loaded into the current {@link LuaState}
+	 */
+	public static PackageLib getInstance() {
+		return LuaState.current().packageLib;
+	}
+
 	public LuaValue call(LuaValue arg) {
+		LuaState.current().packageLib = this;
 		env.set("require", new PkgLib1(env,"require",OP_REQUIRE,this));
 		env.set("module",  new PkgLibV(env,"module",OP_MODULE,this));
 		env.set( "package", PACKAGE=tableOf( new LuaValue[] {
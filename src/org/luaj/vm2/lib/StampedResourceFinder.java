@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2.lib;
+
+/** 
+ * A {@link ResourceFinder} that can also tell when a resource has changed.
+ * <p>
+ * When {@link BaseLib#FINDER} implements this interface, 
+ * {@link BaseLib#loadFile(String)} compiles a file only once for as long as it does not change,
+ * and later loads of it, from any globals or {@link org.luaj.vm2.LuaState}, 
+ * only create a new function around the prototype compiled the first time. 
+ * <p>
+ * @see BaseLib#loadFile(String)
+ * @see org.luaj.vm2.lib.jse.JseBaseLib
+ */
+public interface StampedResourceFinder extends ResourceFinder {
+	
+	/** 
+	 * Get a value that changes whenever the resource changes, such as its modification time.
+	 * 
+	 * @param filename
+	 * @return the stamp of the resource, or 0 if it is not known, in which case the resource is compiled every time. 
+	 */
+	public long getStamp( String filename );
+}
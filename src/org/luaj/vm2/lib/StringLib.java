@@ -23,6 +23,8 @@ package org.luaj.vm2.lib;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.Buffer;
@@ -53,7 +55,9 @@ import org.luaj.vm2.compiler.DumpState;
  * Doing so will ensure the library is properly initialized 
  * and loaded into the globals table. 
  * <p>
- * This is a direct port of the corresponding library in C.
+ * This is a direct port of the corresponding library in C, 
+ * except that patterns are compiled once into a {@link CompiledPattern} 
+ * which is matched without recursion, and recently used ones are cached.
  * @see LibFunction
  * @see JsePlatform
  * @see JmePlatform
@@ -78,7 +82,7 @@ public class StringLib extends OneArgFunction {
 		instance = t;
 		if ( LuaString.s_metatable == null )
 			LuaString.s_metatable = tableOf( new LuaValue[] { INDEX, t } );
-		PackageLib.instance.LOADED.set("string", t);
+		PackageLib.getInstance().LOADED.set("string", t);
 		return t;
 	}
 	
@@ -512,17 +516,28 @@ public class StringLib extends OneArgFunction {
 			this.srclen = src.length();
 			this.ms = new MatchState(args, src, pat);
 			this.soffset = 0;
+			// gmatch does not anchor, so a leading '^' is matched literally by the interpreter
+			if ( ms.cp != null && ms.cp.anchored )
+				ms.cp = null;
 		}
 		public Varargs invoke(Varargs args) {
-			for ( ; soffset<srclen; soffset++ ) {
-				ms.reset();
-				int res = ms.match(soffset, 0);
-				if ( res >=0 ) {
-					int soff = soffset;
-					soffset = res;
-					return ms.push_captures( true, soff, res );
+			if ( ms.cp != null && ms.cp.literal && ms.p.length() > 0 ) {
+				int res = soffset<srclen? ms.s.indexOf( ms.p, soffset ): -1;
+				if ( res < 0 ) {
+					soffset = srclen;
+					return NIL;
 				}
+				soffset = res + ms.p.length();
+				return ms.s.substring( res, soffset );
 			}
+			int res = ms.find( soffset, srclen, 0 );
+			if ( res >= 0 ) {
+				int soff = ms.begin;
+				// step past an empty match, or it would be found again
+				soffset = res == soff? res + 1: res;
+				return ms.push_captures( true, soff, res );
+			}
+			soffset = srclen;
 			return NIL;
 		}
 	}
@@ -586,19 +601,34 @@ public class StringLib extends OneArgFunction {
 		
 		int soffset = 0;
 		int n = 0;
-		while ( n < max_s ) {
-			ms.reset();
-			int res = ms.match( soffset, anchor ? 1 : 0 );
-			if ( res != -1 ) {
+		if ( ms.cp != null && ms.cp.literal && p.length() > 0 ) {
+			// copy up to each occurrence, rather than trying to match at every byte
+			final int plen = p.length();
+			for ( int res; n < max_s && ( res = src.indexOf( p, soffset ) ) != -1; soffset = res + plen ) {
+				lbuf.append( src.substring( soffset, res ) );
 				n++;
-				ms.add_value( lbuf, soffset, res, repl );
+				ms.reset();
+				ms.add_value( lbuf, res, res + plen, repl );
 			}
-			if ( res != -1 && res > soffset )
+			max_s = n;
+		}
+		while ( n < max_s ) {
+			int res = ms.find( soffset, anchor ? soffset : srclen, anchor ? 1 : 0 );
+			if ( res == -1 )
+				break;
+			int begin = ms.begin;
+			lbuf.append( src.substring( soffset, begin ) );
+			n++;
+			ms.add_value( lbuf, begin, res, repl );
+			if ( res > begin )
 				soffset = res;
-			else if ( soffset < srclen )
-				lbuf.append( (byte) src.luaByte( soffset++ ) );
-			else
+			else if ( begin < srclen ) {
+				lbuf.append( (byte) src.luaByte( begin ) );
+				soffset = begin + 1;
+			} else {
+				soffset = begin;
 				break;
+			}
 			if ( anchor )
 				break;
 		}
@@ -735,6 +765,11 @@ public class StringLib extends OneArgFunction {
 		} else {
 			MatchState ms = new MatchState( args, s, pat );
 			
+			if ( ms.cp != null && ms.cp.literal ) {
+				int result = s.indexOf( pat, init );
+				return result != -1? s.substring( result, result+pat.length() ): NIL;
+			}
+			
 			boolean anchor = false;
 			int poff = 0;
 			if ( pat.luaByte( 0 ) == '^' ) {
@@ -742,18 +777,15 @@ public class StringLib extends OneArgFunction {
 				poff = 1;
 			}
 			
-			int soff = init;
-			do {
-				int res;
-				ms.reset();
-				if ( ( res = ms.match( soff, poff ) ) != -1 ) {
-					if ( find ) {
-						return varargsOf( valueOf(soff+1), valueOf(res), ms.push_captures( false, soff, res ));
-					} else {
-						return ms.push_captures( true, soff, res );
-					}
+			int res = ms.find( init, anchor? init: s.length(), poff );
+			if ( res != -1 ) {
+				int soff = ms.begin;
+				if ( find ) {
+					return varargsOf( valueOf(soff+1), valueOf(res), ms.push_captures( false, soff, res ));
+				} else {
+					return ms.push_captures( true, soff, res );
 				}
-			} while ( soff++ < s.length() && !anchor );
+			}
 		}
 		return NIL;
 	}
@@ -766,6 +798,7 @@ public class StringLib extends OneArgFunction {
 	
 	private static final int L_ESC = '%';
 	private static final LuaString SPECIALS = valueOf("^$*+?.([%-");
+	private static final LuaString CLOSE_CAPTURE = valueOf(")");
 	private static final int MAX_CAPTURES = 32;
 	
 	private static final int CAP_UNFINISHED = -1;
@@ -818,6 +851,12 @@ public class StringLib extends OneArgFunction {
 		int[] cinit;
 		int[] clen;
 		
+		/** the compiled pattern, or null to interpret it */
+		CompiledPattern cp;
+		
+		/** backtracking stack for {@link #run(int)}, four ints per entry */
+		private int[] bt;
+		
 		MatchState( Varargs args, LuaString s, LuaString pattern ) {
 			this.s = s;
 			this.p = pattern;
@@ -825,12 +864,220 @@ public class StringLib extends OneArgFunction {
 			this.level = 0;
 			this.cinit = new int[ MAX_CAPTURES ];
 			this.clen = new int[ MAX_CAPTURES ];
+			this.cp = CompiledPattern.get( pattern );
+		}
+		
+		/** Construct a state for examining a pattern while compiling it */
+		MatchState( LuaString pattern ) {
+			this.s = null;
+			this.p = pattern;
+			this.args = null;
 		}
 		
 		void reset() {
 			level = 0;
 		}
 		
+		/** offset into s where the match found by {@link #find(int, int, int)} begins */
+		int begin;
+		
+		/**
+		 * Find the first match beginning at an offset from {@code soffset} to {@code last}, 
+		 * using the compiled pattern when there is one. 
+		 * @param soffset first offset into s to try
+		 * @param last last offset into s to try
+		 * @param poffset 0, or 1 to skip a '^' at the start of the pattern
+		 * @return offset into s where the match ends, or -1, with the beginning in {@link #begin} 
+		 */
+		int find( int soffset, int last, int poffset ) {
+			if ( cp != null && poffset == ( cp.anchored? 1: 0 ) )
+				return run( soffset, last );
+			for ( ; soffset <= last; soffset++ ) {
+				reset();
+				int res = match( soffset, poffset );
+				if ( res != -1 ) {
+					begin = soffset;
+					return res;
+				}
+			}
+			return -1;
+		}
+		
+		private static final int BT_OPEN = 0, BT_CLOSE = 1, BT_SKIP = 2, BT_MAX = 3, BT_MIN = 4;
+		
+		/**
+		 * Find the first match of the compiled pattern, with the same results as 
+		 * calling {@link #match(int, int)} at each offset in turn, 
+		 * but keeping the choices to go back to on a stack instead of recursing, 
+		 * and skipping offsets where the first character cannot match. 
+		 * @param soff first offset into s to try
+		 * @param last last offset into s to try
+		 * @return offset into s where the match ends, or -1, with the beginning in {@link #begin} 
+		 */
+		private int run( int soff, int last ) {
+			final int[] kind = cp.kind, quant = cp.quant, pos = cp.pos;
+			final boolean[][] set = cp.set;
+			final boolean[] first = cp.first;
+			final int n = kind.length, slen = s.length();
+			int ip = 0, sp = 0;
+			if ( first != null )
+				while ( soff <= last && ( soff >= slen || !first[s.luaByte( soff )] ) )
+					soff++;
+			if ( soff > last )
+				return -1;
+			level = 0;
+			begin = soff;
+			while ( true ) {
+				match: {
+					if ( ip == n )
+						return soff;
+					switch ( kind[ip] ) {
+					case CompiledPattern.SINGLE: {
+						final boolean[] cl = set[ip];
+						switch ( quant[ip] ) {
+						case '?':
+							if ( soff < slen && cl[s.luaByte( soff )] ) {
+								sp = push( sp, BT_SKIP, ip + 1, soff, 0 );
+								soff++;
+							}
+							ip++;
+							continue;
+						case '*':
+						case '+': {
+							int min = quant[ip] == '+'? soff + 1: soff;
+							int i = soff;
+							while ( i < slen && cl[s.luaByte( i )] )
+								i++;
+							if ( i < min )
+								break match;
+							if ( i > min )
+								sp = push( sp, BT_MAX, ip + 1, min, i - 1 );
+							soff = i;
+							ip++;
+							continue;
+						}
+						case '-':
+							sp = push( sp, BT_MIN, ip, soff, 0 );
+							ip++;
+							continue;
+						default:
+							if ( soff < slen && cl[s.luaByte( soff )] ) {
+								soff++;
+								ip++;
+								continue;
+							}
+							break match;
+						}
+					}
+					case CompiledPattern.OPEN:
+					case CompiledPattern.POSITION:
+						if ( level >= MAX_CAPTURES )
+							error( "too many captures" );
+						cinit[level] = soff;
+						clen[level] = kind[ip] == CompiledPattern.OPEN? CAP_UNFINISHED: CAP_POSITION;
+						level++;
+						sp = push( sp, BT_OPEN, 0, 0, 0 );
+						ip++;
+						continue;
+					case CompiledPattern.CLOSE: {
+						int l = capture_to_close();
+						clen[l] = soff - cinit[l];
+						sp = push( sp, BT_CLOSE, l, 0, 0 );
+						ip++;
+						continue;
+					}
+					case CompiledPattern.BACKREF:
+						if ( ( soff = match_capture( soff, p.luaByte( pos[ip] + 1 ) ) ) == -1 )
+							break match;
+						ip++;
+						continue;
+					case CompiledPattern.BALANCE:
+						if ( ( soff = matchbalance( soff, pos[ip] + 2 ) ) == -1 )
+							break match;
+						ip++;
+						continue;
+					case CompiledPattern.FRONTIER: {
+						int poffset = pos[ip] + 2;
+						int ep = classend( poffset );
+						int previous = ( soff == 0 ) ? 0 : s.luaByte( soff - 1 );
+						int current = ( soff < slen ) ? s.luaByte( soff ) : 0;
+						if ( matchbracketclass( previous, poffset, ep - 1 ) ||
+							 !matchbracketclass( current, poffset, ep - 1 ) )
+							break match;
+						ip++;
+						continue;
+					}
+					case CompiledPattern.END:
+						if ( soff != slen )
+							break match;
+						ip++;
+						continue;
+					}
+				}
+				
+				// no match, go back to the latest choice, undoing captures on the way
+				choose: while ( true ) {
+					if ( sp == 0 ) {
+						// no match here, try the next offset
+						soff = begin + 1;
+						if ( first != null )
+							while ( soff <= last && ( soff >= slen || !first[s.luaByte( soff )] ) )
+								soff++;
+						if ( soff > last )
+							return -1;
+						begin = soff;
+						ip = 0;
+						break choose;
+					}
+					sp -= 4;
+					final int a = bt[sp+1], b = bt[sp+2], c = bt[sp+3];
+					switch ( bt[sp] ) {
+					case BT_OPEN:
+						level--;
+						continue;
+					case BT_CLOSE:
+						clen[a] = CAP_UNFINISHED;
+						continue;
+					case BT_SKIP:
+						ip = a;
+						soff = b;
+						break choose;
+					case BT_MAX:
+						ip = a;
+						soff = c;
+						if ( c > b ) {
+							bt[sp+3] = c - 1;
+							sp += 4;
+						}
+						break choose;
+					case BT_MIN:
+						if ( b < slen && set[a][s.luaByte( b )] ) {
+							ip = a + 1;
+							soff = b + 1;
+							bt[sp+2] = soff;
+							sp += 4;
+							break choose;
+						}
+						continue;
+					}
+				}
+			}
+		}
+		
+		private int push( int sp, int type, int a, int b, int c ) {
+			if ( bt == null || sp + 4 > bt.length ) {
+				int[] t = new int[ bt == null? 64: bt.length * 2 ];
+				if ( bt != null )
+					System.arraycopy( bt, 0, t, 0, sp );
+				bt = t;
+			}
+			bt[sp] = type;
+			bt[sp+1] = a;
+			bt[sp+2] = b;
+			bt[sp+3] = c;
+			return sp + 4;
+		}
+		
 		private void add_s( Buffer lbuf, LuaString news, int soff, int e ) {
 			int l = news.length();
 			for ( int i = 0; i < l; ++i ) {
@@ -939,14 +1186,14 @@ public class StringLib extends OneArgFunction {
 				return poffset + 1;
 				
 			case '[':
-				if ( p.luaByte( poffset ) == '^' ) poffset++;
+				if ( poffset < p.length() && p.luaByte( poffset ) == '^' ) poffset++;
 				do {
 					if ( poffset == p.length() ) {
 						error( "malformed pattern (missing ])" );
 					}
 					if ( p.luaByte( poffset++ ) == L_ESC && poffset != p.length() )
 						poffset++;
-				} while ( p.luaByte( poffset ) != ']' );
+				} while ( poffset == p.length() || p.luaByte( poffset ) != ']' );
 				return poffset + 1;
 			default:
 				return poffset;
@@ -1035,13 +1282,14 @@ public class StringLib extends OneArgFunction {
 						continue;
 					case 'f': {
 						poffset += 2;
-						if ( p.luaByte( poffset ) != '[' ) {
+						if ( poffset == p.length() || p.luaByte( poffset ) != '[' ) {
 							error("Missing [ after %f in pattern");
 						}
 						int ep = classend( poffset );
-						int previous = ( soffset == 0 ) ? -1 : s.luaByte( soffset - 1 );
+						int previous = ( soffset == 0 ) ? 0 : s.luaByte( soffset - 1 );
+						int current = ( soffset < s.length() ) ? s.luaByte( soffset ) : 0;
 						if ( matchbracketclass( previous, poffset, ep - 1 ) ||
-							 matchbracketclass( s.luaByte( soffset ), poffset, ep - 1 ) )
+							 !matchbracketclass( current, poffset, ep - 1 ) )
 							return -1;
 						poffset = ep;
 						continue;
@@ -1150,7 +1398,7 @@ public class StringLib extends OneArgFunction {
 			if ( poff == plen || poff + 1 == plen ) {
 				error( "unbalanced pattern" );
 			}
-			if ( s.luaByte( soff ) != p.luaByte( poff ) )
+			if ( soff >= s.length() || s.luaByte( soff ) != p.luaByte( poff ) )
 				return -1;
 			else {
 				int b = p.luaByte( poff );
@@ -1166,4 +1414,168 @@ public class StringLib extends OneArgFunction {
 			return -1;
 		}
 	}
+	
+	/**
+	 * A pattern parsed once into a list of items, 
+	 * each a single character class with its repetition, a capture, or an assertion, 
+	 * so that matching does not decode the pattern again for every character.
+	 * <p>
+	 * Single character classes, such as {@code a}, {@code .}, {@code %w} or {@code [^%s,]}, 
+	 * become a table of the 256 byte values that match. 
+	 * Patterns that would raise an error while matching are not compiled, 
+	 * and are left to the interpreter in {@link MatchState} which raises it 
+	 * only if the match gets that far, as in C.
+	 * <p>
+	 * Compiled patterns are kept in a cache shared by all threads, which is read without locking 
+	 * and emptied when it grows past {@link #CACHE_SIZE}, 
+	 * so a program using a bounded set of patterns compiles each of them about once.
+	 */
+	static final class CompiledPattern {
+		static final int SINGLE = 0, OPEN = 1, POSITION = 2, CLOSE = 3, BACKREF = 4, BALANCE = 5, FRONTIER = 6, END = 7;
+		
+		private static final int CACHE_SIZE = 256;
+		
+		/** Cache entry for patterns that cannot be compiled */
+		private static final CompiledPattern INTERPRETED = new CompiledPattern( false, false, 0 );
+		
+		/** Compiled patterns by pattern string */
+		private static final Map cache = new ConcurrentHashMap();
+		
+		/** true if the pattern starts with '^', which is not part of the items */
+		final boolean anchored;
+		
+		/** true if the pattern has no special characters, so can be found with {@link LuaString#indexOf(LuaString, int)} */
+		final boolean literal;
+		
+		/** kind of each item */
+		final int[] kind;
+		
+		/** repetition of each {@link #SINGLE} item: '?', '*', '+', '-' or 0 */
+		final int[] quant;
+		
+		/** offset of each item in the pattern */
+		final int[] pos;
+		
+		/** bytes matched by each {@link #SINGLE} item */
+		final boolean[][] set;
+		
+		/** bytes a match can begin with, or null if any */
+		boolean[] first;
+		
+		private CompiledPattern( boolean anchored, boolean literal, int n ) {
+			this.anchored = anchored;
+			this.literal = literal;
+			this.kind = new int[n];
+			this.quant = new int[n];
+			this.pos = new int[n];
+			this.set = new boolean[n][];
+		}
+		
+		/**
+		 * Get the compiled form of a pattern, compiling it if it is not in the cache
+		 * @param p the pattern
+		 * @return {@link CompiledPattern} for the pattern, or null if it must be interpreted
+		 */
+		static CompiledPattern get( LuaString p ) {
+			CompiledPattern cp = (CompiledPattern) cache.get( p );
+			if ( cp == null ) {
+				cp = compile( p );
+				if ( cache.size() >= CACHE_SIZE )
+					cache.clear();
+				cache.put( p.compact(), cp );
+			}
+			return cp != INTERPRETED? cp: null;
+		}
+		
+		private static CompiledPattern compile( LuaString p ) {
+			final int plen = p.length();
+			final MatchState ms = new MatchState( p );
+			int poffset = plen > 0 && p.luaByte( 0 ) == '^'? 1: 0;
+			int[] kind = new int[plen], quant = new int[plen], pos = new int[plen];
+			boolean[][] set = new boolean[plen][];
+			int n = 0;
+			try {
+				while ( poffset < plen ) {
+					pos[n] = poffset;
+					switch ( p.luaByte( poffset ) ) {
+					case '(':
+						if ( poffset + 1 < plen && p.luaByte( poffset + 1 ) == ')' ) {
+							kind[n++] = POSITION;
+							poffset += 2;
+						} else {
+							kind[n++] = OPEN;
+							poffset++;
+						}
+						continue;
+					case ')':
+						kind[n++] = CLOSE;
+						poffset++;
+						continue;
+					case '$':
+						if ( poffset + 1 == plen ) {
+							kind[n++] = END;
+							poffset++;
+							continue;
+						}
+						break;
+					case L_ESC:
+						if ( poffset + 1 == plen )
+							return INTERPRETED;
+						int c = p.luaByte( poffset + 1 );
+						if ( c == 'b' ) {
+							if ( poffset + 3 >= plen )
+								return INTERPRETED;
+							kind[n++] = BALANCE;
+							poffset += 4;
+							continue;
+						}
+						if ( c == 'f' ) {
+							if ( poffset + 2 >= plen || p.luaByte( poffset + 2 ) != '[' )
+								return INTERPRETED;
+							kind[n++] = FRONTIER;
+							poffset = ms.classend( poffset + 2 );
+							continue;
+						}
+						if ( Character.isDigit( (char) c ) ) {
+							kind[n++] = BACKREF;
+							poffset += 2;
+							continue;
+						}
+						break;
+					}
+					int ep = ms.classend( poffset );
+					if ( ep > plen )
+						return INTERPRETED;
+					boolean[] cl = new boolean[256];
+					for ( int c = 0; c < 256; c++ )
+						cl[c] = ms.singlematch( c, poffset, ep );
+					int q = ep < plen? p.luaByte( ep ): 0;
+					kind[n] = SINGLE;
+					set[n] = cl;
+					if ( q == '?' || q == '*' || q == '+' || q == '-' ) {
+						quant[n] = q;
+						poffset = ep + 1;
+					} else {
+						poffset = ep;
+					}
+					n++;
+				}
+			} catch ( RuntimeException e ) {
+				// malformed, let the interpreter raise the error when it gets there
+				return INTERPRETED;
+			}
+			CompiledPattern cp = new CompiledPattern( plen > 0 && p.luaByte( 0 ) == '^', p.indexOfAny( SPECIALS ) == -1 && p.indexOfAny( CLOSE_CAPTURE ) == -1, n );
+			System.arraycopy( kind, 0, cp.kind, 0, n );
+			System.arraycopy( quant, 0, cp.quant, 0, n );
+			System.arraycopy( pos, 0, cp.pos, 0, n );
+			System.arraycopy( set, 0, cp.set, 0, n );
+			for ( int i = 0; i < n; i++ ) {
+				if ( kind[i] == SINGLE && ( quant[i] == 0 || quant[i] == '+' ) )
+					cp.first = set[i];
+				if ( kind[i] != OPEN && kind[i] != POSITION )
+					break;
+			}
+			return cp;
+		}
+	}
 }
@@ -21,7 +21,9 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import org.luaj.vm2.ConcurrentLuaTable;
 import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.NumericTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 
@@ -51,6 +53,10 @@ import org.luaj.vm2.Varargs;
  * and loaded into the globals table. 
  * <p>
  * This has been implemented to match as closely as possible the behavior in the corresponding library in C.
+ * In addition, {@code table.numeric([n])} creates an empty {@link NumericTable} 
+ * with room for {@code n} numbers, for large lists of numbers, 
+ * and {@code table.concurrent([n])} creates an empty {@link ConcurrentLuaTable} 
+ * with room for {@code n} list elements, for state shared between java threads.
  * @see LibFunction
  * @see JsePlatform
  * @see JmePlatform
@@ -63,11 +69,11 @@ public class TableLib extends OneArgFunction {
 
 	private LuaTable init() {
 		LuaTable t = new LuaTable();
-		bind(t, TableLib.class, new String[] { "getn", "maxn", }, 1 );
+		bind(t, TableLib.class, new String[] { "getn", "maxn", "numeric", "concurrent", }, 1 );
 		bind(t, TableLibV.class, new String[] {
 			"remove", "concat", "insert", "sort", "foreach", "foreachi", } );
 		env.set("table", t);
-		PackageLib.instance.LOADED.set("table", t);
+		PackageLib.getInstance().LOADED.set("table", t);
 		return t;
 	}
 	
@@ -79,6 +85,10 @@ public class TableLib extends OneArgFunction {
 			return arg.checktable().getn();
 		case 2: // "maxn"  (table) -> number 
 			return valueOf( arg.checktable().maxn());
+		case 3: // "numeric" ([n]) -> table holding a list of numbers unboxed
+			return new NumericTable( arg.optint(0) );
+		case 4: // "concurrent" ([n]) -> table that may be shared between threads
+			return new ConcurrentLuaTable( arg.optint(0), 0 );
 		}
 		return NIL;
 	}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.CoroutineLib;
+import org.luaj.vm2.lib.IoLib;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.VarArgFunction;
+
+/**
+ * Subclass of {@link VarArgFunction} which implements an {@code aio} library
+ * of whole file reads and writes that run on a small pool of java threads,
+ * so that a slow disk does not hold up the thread running lua code.
+ * <p>
+ * The functions are:
+ * <ul>
+ * <li>{@code aio.read(filename)} returns the contents of the file as a string</li>
+ * <li>{@code aio.lines(filename)} returns an iterator over the lines of the file,
+ * which end at {@code "\n"} with a {@code "\r"} before it removed</li>
+ * <li>{@code aio.write(filename, ...)} replaces the contents of the file with the strings given,
+ * and returns true</li>
+ * <li>{@code aio.append(filename, ...)} adds the strings given at the end of the file,
+ * and returns true</li>
+ * </ul>
+ * On failure they return nil and an error message, like the {@link IoLib} functions.
+ * <p>
+ * The functions may only be called by a coroutine run in time slices, 
+ * the one given to {@link LuaState#beginSlice(LuaThread, long)}, 
+ * as a scheduler resuming scripts on every tick does; elsewhere they raise an error.  
+ * Such a coroutine hands the work to the pool and yields a userdata holding the {@link Future} of the work, 
+ * and the scheduler should leave it parked until the future is done before resuming it again.
+ * The values passed to that resume are ignored.
+ * <p>
+ * The pool has as many threads as the system property {@code luaj.aio.threads}, by default 2,
+ * and as many waiting tasks as {@code luaj.aio.queue}, by default 64;
+ * while it is full, coroutines yield with no values, as at the end of a time slice, 
+ * and try again when resumed.
+ * <p>
+ * This library is not part of the standard globals.
+ * To use it, link it into your globals table via {@link LuaValue#load(LuaValue)}:
+ * <pre> {@code
+ * LuaTable _G = JsePlatform.standardGlobals();
+ * _G.load(new AsyncIoLib());
+ * } </pre>
+ * @see IoLib
+ * @see CoroutineLib
+ * @see LuaThread
+ */
+public class AsyncIoLib extends VarArgFunction {
+
+	private static final int INIT   = 0;
+	private static final int READ   = 1;
+	private static final int LINES  = 2;
+	private static final int WRITE  = 3;
+	private static final int APPEND = 4;
+
+	private static ThreadPoolExecutor pool;
+
+	public AsyncIoLib() {
+	}
+
+	private LuaTable init() {
+		LuaTable t = new LuaTable();
+		bind(t, AsyncIoLib.class, new String[] {
+			"read", "lines", "write", "append" },
+			READ);
+		env.set("aio", t);
+		PackageLib.getInstance().LOADED.set("aio", t);
+		return t;
+	}
+
+	public Varargs invoke(Varargs args) {
+		switch ( opcode ) {
+			case INIT: {
+				return init();
+			}
+			case READ: {
+				final String filename = args.checkjstring(1);
+				return await(new Callable() {
+					public Object call() throws IOException {
+						return LuaString.valueOf(readfile(filename));
+					}
+				});
+			}
+			case LINES: {
+				final String filename = args.checkjstring(1);
+				return await(new Callable() {
+					public Object call() throws IOException {
+						return new LinesIterator(readfile(filename));
+					}
+				});
+			}
+			case WRITE:
+			case APPEND: {
+				final String filename = args.checkjstring(1);
+				final boolean append = opcode == APPEND;
+				final LuaString[] data = new LuaString[args.narg()-1];
+				for ( int i=0; i<data.length; i++ )
+					data[i] = args.checkstring(i+2);
+				return await(new Callable() {
+					public Object call() throws IOException {
+						FileOutputStream os = new FileOutputStream(filename, append);
+						try {
+							for ( int i=0; i<data.length; i++ )
+								os.write(data[i].m_bytes, data[i].m_offset, data[i].m_length);
+						} finally {
+							os.close();
+						}
+						return TRUE;
+					}
+				});
+			}
+			default:
+				return NONE;
+		}
+	}
+
+	/**
+	 * Do the work of a call on the pool, with the running coroutine parked until it is done.
+	 * @param work returns the {@link Varargs} to return from the call
+	 * @return the values returned by the work, or nil and a message if it threw an exception
+	 */
+	private static Varargs await(Callable work) {
+		LuaThread running = LuaThread.getRunning();
+		if ( ! LuaState.current().isSliced(running) )
+			return error("aio can only be used by a coroutine run in time slices");
+		FutureTask task = new FutureTask(work);
+		while ( true ) {
+			try {
+				pool().execute(task);
+				break;
+			} catch ( RejectedExecutionException e ) {
+				running.yield(NONE);
+			}
+		}
+		LuaValue future = userdataOf(task);
+		while ( ! task.isDone() )
+			running.yield(future);
+		try {
+			return (Varargs) task.get();
+		} catch ( ExecutionException e ) {
+			Throwable t = e.getCause();
+			String s = t.getMessage();
+			return varargsOf(NIL, valueOf("io error: "+(s!=null? s: t.toString())));
+		} catch ( InterruptedException e ) {
+			return error("interrupted");
+		}
+	}
+
+	private static byte[] readfile(String filename) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(filename, "r");
+		try {
+			long n = f.length();
+			if ( n > Integer.MAX_VALUE )
+				throw new IOException("file too large");
+			byte[] b = new byte[(int) n];
+			f.readFully(b);
+			return b;
+		} finally {
+			f.close();
+		}
+	}
+
+	/** 
+	 * Iterator over the lines of a file read by {@code aio.lines()}, 
+	 * returning strings that share the bytes of the file 
+	 */
+	private static final class LinesIterator extends VarArgFunction {
+		private final byte[] b;
+		private int i = 0;
+		LinesIterator(byte[] b) {
+			this.b = b;
+			this.name = "lines";
+		}
+		public Varargs invoke(Varargs args) {
+			int s = i;
+			if ( s >= b.length )
+				return NIL;
+			while ( i<b.length && b[i] != '\n' )
+				++i;
+			int e = i>s && b[i-1]=='\r'? i-1: i;
+			++i;
+			return LuaString.valueOf(b, s, e-s);
+		}
+	}
+
+	/** Pool of daemon threads doing the work, created when first used */
+	private static synchronized ThreadPoolExecutor pool() {
+		if ( pool == null ) {
+			int threads = Math.max(1, Integer.getInteger("luaj.aio.threads", 2).intValue());
+			int queue = Math.max(1, Integer.getInteger("luaj.aio.queue", 64).intValue());
+			pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue(queue),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "luaj-aio");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		return pool;
+	}
+}
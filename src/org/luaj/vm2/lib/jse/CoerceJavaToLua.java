@@ -69,8 +69,23 @@ public class CoerceJavaToLua {
 		public LuaValue coerce( Object javaValue );
 	};
 	
+	/** Coercions of the types with a fixed mapping to lua types, not modified after initialization */
 	static final Map COERCIONS = new HashMap();
 	
+	/** 
+	 * Coercion for each class of java value seen so far. 
+	 * Lookups need no locking, and entries do not keep classes from being unloaded.
+	 */
+	static final ClassValue coercions = new ClassValue() {
+		protected Object computeValue(Class clazz) {
+			Coercion c = (Coercion) COERCIONS.get( clazz );
+			return c!=null? c:
+				clazz == Class.class? classCoercion:
+				clazz.isArray()? arrayCoercion:
+				instanceCoercion;
+		}
+	};
+	
 	static {
 		Coercion boolCoercion = new Coercion() {
 			public LuaValue coerce( Object javaValue ) {
@@ -131,17 +146,37 @@ public class CoerceJavaToLua {
 	public static LuaValue coerce(Object o) {
 		if ( o == null )
 			return LuaValue.NIL;
-		Class clazz = o.getClass();
-		Coercion c = (Coercion) COERCIONS.get( clazz );
-		if ( c == null ) {
-			c = o instanceof Class? JavaClass.forClass((Class)o):
-				clazz.isArray()? arrayCoercion:
-				instanceCoercion;
-			COERCIONS.put( clazz, c );
-		}
-		return c.coerce(o);
+		return ((Coercion) coercions.get( o.getClass() )).coerce(o);
 	}
 
+	/**
+	 * Coerce a Java object to a lua value, reusing a userdata created earlier if possible.
+	 * <p>
+	 * When {@code o} would become a {@link LuaUserdata} of the same sort as {@code reuse},
+	 * {@code reuse} is changed to refer to {@code o} and returned, so no new value is created.
+	 * This is only safe if no lua code retains {@code reuse}, 
+	 * for example a value passed to a handler that does not store it anywhere.
+	 * @param o Java object needing conversion
+	 * @param reuse value returned by an earlier call which is no longer used, or null
+	 * @return {@link LuaValue} corresponding to the supplied Java value, possibly {@code reuse}
+	 * @see #coerce(Object)
+	 */
+	public static LuaValue coerce(Object o, LuaValue reuse) {
+		if ( o == null )
+			return LuaValue.NIL;
+		Coercion c = (Coercion) coercions.get( o.getClass() );
+		if ( c != instanceCoercion || !(reuse instanceof JavaInstance) || reuse instanceof JavaClass )
+			return c.coerce(o);
+		((JavaInstance) reuse).rebind(o);
+		return reuse;
+	}
+
+	static final Coercion classCoercion = new Coercion() {
+		public LuaValue coerce(Object javaValue) {
+			return JavaClass.forClass((Class) javaValue);
+		}
+	};
+	
 	static final Coercion instanceCoercion = new Coercion() {
 		public LuaValue coerce(Object javaValue) {
 			return new JavaInstance(javaValue);
@@ -25,7 +25,6 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -73,6 +72,62 @@ public class CoerceLuaToJava {
 		public Object coerce( LuaValue value );
 	};
 
+	/** Kinds of lua values, see {@link #kind(LuaValue)} */
+	static final Object KIND_NIL        = "nil";
+	static final Object KIND_BOOLEAN    = "boolean";
+	static final Object KIND_BYTE       = "byte";
+	static final Object KIND_CHAR_SHORT = "char,short";
+	static final Object KIND_CHAR       = "char";
+	static final Object KIND_SHORT      = "short";
+	static final Object KIND_INT        = "int";
+	static final Object KIND_LONG_FLOAT = "long,float";
+	static final Object KIND_LONG       = "long";
+	static final Object KIND_FLOAT      = "float";
+	static final Object KIND_DOUBLE     = "double";
+	static final Object KIND_UTF8       = "utf8";
+	static final Object KIND_BYTES      = "bytes";
+	
+	/**
+	 * Get the kind of a lua value for the purpose of scoring.
+	 * <p>
+	 * Values of the same kind get the same score from every {@link Coercion}, 
+	 * so kinds can be compared by identity to reuse the result of scoring earlier values. 
+	 * The kind is one of the {@code KIND_} constants for nil, booleans, numbers and strings,
+	 * the class of the instance for userdata, and the class of the value itself for 
+	 * functions and threads.
+	 * @param value the value to classify
+	 * @return the kind of the value, or null if its score depends on its contents, as for tables 
+	 */
+	static Object kind(LuaValue value) {
+		switch ( value.type() ) {
+		case LuaValue.TNIL:
+			return KIND_NIL;
+		case LuaValue.TBOOLEAN:
+			return KIND_BOOLEAN;
+		case LuaValue.TNUMBER:
+			if ( value.isint() ) {
+				int i = value.toint();
+				return (i==(byte)i)? KIND_BYTE:
+					(i==(char)i)? ((i==(short)i)? KIND_CHAR_SHORT: KIND_CHAR):
+					(i==(short)i)? KIND_SHORT: KIND_INT;
+			} else {
+				double d = value.todouble();
+				return (d==(long)d)? ((d==(float)d)? KIND_LONG_FLOAT: KIND_LONG):
+					(d==(float)d)? KIND_FLOAT: KIND_DOUBLE;
+			}
+		case LuaValue.TSTRING:
+			if ( value.isnumber() )
+				return null;
+			return value.checkstring().isValidUtf8()? KIND_UTF8: KIND_BYTES;
+		case LuaValue.TUSERDATA:
+			return value.touserdata().getClass();
+		case LuaValue.TTABLE:
+			return null;
+		default:
+			return value.getClass();
+		}
+	}
+
 	/** 
 	 * Coerce a LuaValue value to a specified java class
 	 * @param value LuaValue to coerce
@@ -83,7 +138,20 @@ public class CoerceLuaToJava {
 		return getCoercion(clazz).coerce(value);
 	}
 	
-	static final Map COERCIONS = Collections.synchronizedMap(new HashMap());
+	/** Coercions to the primitive, string and byte array types, not modified after initialization */
+	static final Map COERCIONS = new HashMap();
+	
+	/** Coercion to each java type seen so far, looked up without locking */
+	static final ClassValue coercions = new ClassValue() {
+		protected Object computeValue(Class c) {
+			Coercion co = (Coercion) COERCIONS.get( c );
+			if ( co != null )
+				return co;
+			if ( c.isArray() )
+				return new ArrayCoercion(c.getComponentType());
+			return new ObjectCoercion(c);
+		}
+	};
 	
 	static final class BoolCoercion implements Coercion {
 		public String toString() {
@@ -351,17 +419,6 @@ public class CoerceLuaToJava {
 	}
 	
 	static Coercion getCoercion(Class c) {
-		Coercion co = (Coercion) COERCIONS.get( c );
-		if ( co != null ) {
-			return co;
-		}
-		if ( c.isArray() ) {
-			Class typ = c.getComponentType();
-			co = new ArrayCoercion(c.getComponentType());
-		} else {
-			co = new ObjectCoercion(c);
-		}
-		COERCIONS.put( c, co );
-		return co;
+		return (Coercion) coercions.get( c );
 	}
 }
@@ -26,7 +26,6 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -49,18 +48,21 @@ import org.luaj.vm2.LuaValue;
  */
 class JavaClass extends JavaInstance implements CoerceJavaToLua.Coercion {
 
-	static final Map classes = Collections.synchronizedMap(new HashMap());
+	/** The {@link JavaClass} of each class, created on first use */
+	static final ClassValue classes = new ClassValue() {
+		protected Object computeValue(Class c) {
+			return new JavaClass(c);
+		}
+	};
 
 	static final LuaValue NEW = valueOf("new");
 	
-	Map fields;
-	Map methods;
+	// built on first use, and only read once published
+	volatile Map fields;
+	volatile Map methods;
 	
 	static JavaClass forClass(Class c) {
-		JavaClass j = (JavaClass) classes.get(c);
-		if ( j == null )
-			classes.put( c, j = new JavaClass(c) );
-		return j;
+		return (JavaClass) classes.get(c);
 	}
 	
 	JavaClass(Class c) {
@@ -46,6 +46,16 @@ class JavaInstance extends LuaUserdata {
 		super(instance);
 	}
 
+	/**
+	 * Make this userdata refer to another java object, so the wrapper can be reused
+	 * @param instance the new object
+	 */
+	void rebind(Object instance) {
+		if ( jclass != null && instance.getClass() != m_instance.getClass() )
+			jclass = null;
+		m_instance = instance;
+	}
+
 	public LuaValue get(LuaValue key) {
 		if ( jclass == null )
 			jclass = JavaClass.forClass(m_instance.getClass());
@@ -21,11 +21,13 @@
 ******************************************************************************/
 package org.luaj.vm2.lib.jse;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
@@ -40,17 +42,24 @@ import org.luaj.vm2.Varargs;
  * This class is not used directly.  
  * It is returned by calls to calls to {@link JavaInstance#get(LuaValue key)} 
  * when a method is named.
+ * <p>
+ * Where possible the method is invoked through a {@link MethodHandle} resolved once
+ * when the {@link JavaMethod} is created, with arguments of methods taking up to two 
+ * parameters passed directly rather than in an array. 
  * @see CoerceJavaToLua
  * @see CoerceLuaToJava
  */
 class JavaMethod extends JavaMember {
 
-	static final Map methods = Collections.synchronizedMap(new HashMap());
+	static final ConcurrentHashMap methods = new ConcurrentHashMap();
 	
 	static JavaMethod forMethod(Method m) {
 		JavaMethod j = (JavaMethod) methods.get(m);
-		if ( j == null )
-			methods.put( m, j = new JavaMethod(m) );
+		if ( j == null ) {
+			JavaMethod k = (JavaMethod) methods.putIfAbsent( m, j = new JavaMethod(m) );
+			if ( k != null )
+				j = k;
+		}
 		return j;
 	}
 	
@@ -60,9 +69,35 @@ class JavaMethod extends JavaMember {
 	
 	final Method method;
 	
+	/** Handle taking the instance and arguments as objects, or null to use reflection */
+	private final MethodHandle handle;
+	
 	private JavaMethod(Method m) {
 		super( m.getParameterTypes(), m.getModifiers() );
 		this.method = m;
+		this.handle = varargs==null? handleFor(m): null;
+	}
+
+	/**
+	 * Resolve the handle used to invoke a method
+	 * @param m the method
+	 * @return handle of type (Object,Object,Object)Object or narrower for methods
+	 * of up to two parameters, otherwise of type (Object,Object[])Object, 
+	 * or null if the method is not accessible
+	 */
+	private static MethodHandle handleFor(Method m) {
+		try {
+			MethodHandle h = MethodHandles.publicLookup().unreflect(m);
+			if ( Modifier.isStatic(m.getModifiers()) )
+				h = MethodHandles.dropArguments(h, 0, new Class[] { Object.class });
+			int n = m.getParameterTypes().length;
+			if ( n <= 2 )
+				return h.asType(MethodType.genericMethodType(n+1));
+			return h.asSpreader(Object[].class, n)
+				.asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+		} catch ( Exception e ) {
+			return null;
+		}
 	}
 
 	public LuaValue call() {
@@ -86,6 +121,28 @@ class JavaMethod extends JavaMember {
 	}
 	
 	LuaValue invokeMethod(Object instance, Varargs args) {
+		if ( handle != null ) {
+			Object r;
+			try {
+				switch ( fixedargs.length ) {
+				case 0: 
+					r = (Object) handle.invokeExact(instance); 
+					break;
+				case 1: 
+					r = (Object) handle.invokeExact(instance, fixedargs[0].coerce(args.arg1())); 
+					break;
+				case 2: 
+					r = (Object) handle.invokeExact(instance, fixedargs[0].coerce(args.arg1()), fixedargs[1].coerce(args.arg(2))); 
+					break;
+				default:
+					r = (Object) handle.invokeExact(instance, convertArgs(args));
+					break;
+				}
+			} catch (Throwable t) {
+				throw new LuaError(t);
+			}
+			return CoerceJavaToLua.coerce( r );
+		}
 		Object[] a = convertArgs(args);
 		try {
 			return CoerceJavaToLua.coerce( method.invoke(instance, a) );
@@ -100,6 +157,8 @@ class JavaMethod extends JavaMember {
 	 * LuaValue that represents an overloaded Java method.
 	 * <p>
 	 * On invocation, will pick the best method from the list, and invoke it.
+	 * The choice is remembered for the kinds of arguments it was made for, 
+	 * so that calls with arguments of the same kinds do not score every method again. 
 	 * <p>
 	 * This class is not used directly.  
 	 * It is returned by calls to calls to {@link JavaInstance#get(LuaValue key)} 
@@ -107,8 +166,15 @@ class JavaMethod extends JavaMember {
 	 */
 	static class Overload extends LuaFunction {
 
+		/** Number of choices remembered */
+		private static final int SELECTIONS = 4;
+		
 		final JavaMethod[] methods;
 		
+		/** Recent choices, replaced in turn */
+		private final Selection[] selections = new Selection[SELECTIONS];
+		private int next;
+		
 		Overload(JavaMethod[] methods) {
 			this.methods = methods;
 		}
@@ -134,6 +200,14 @@ class JavaMethod extends JavaMember {
 		}
 
 		private LuaValue invokeBestMethod(Object instance, Varargs args) {
+			Object[] kinds = Selection.kinds(args);
+			if ( kinds != null )
+				for ( int i=0; i<SELECTIONS; i++ ) {
+					Selection s = selections[i];
+					if ( s != null && s.matches(kinds) )
+						return s.method.invokeMethod(instance, args);
+				}
+			
 			JavaMethod best = null;
 			int score = CoerceLuaToJava.SCORE_UNCOERCIBLE;
 			for ( int i=0; i<methods.length; i++ ) {
@@ -150,9 +224,48 @@ class JavaMethod extends JavaMember {
 			if ( best == null )
 				LuaValue.error("no coercible public method");
 			
+			// remember it
+			if ( kinds != null ) {
+				selections[next] = new Selection(kinds, best);
+				next = (next+1) % SELECTIONS;
+			}
+			
 			// invoke it
 			return best.invokeMethod(instance, args);
 		}
 	}
 
+	/**
+	 * Method chosen from an {@link Overload} for arguments of particular kinds.
+	 * @see CoerceLuaToJava#kind(LuaValue)
+	 */
+	static final class Selection {
+		final Object[] kinds;
+		final JavaMethod method;
+		
+		Selection(Object[] kinds, JavaMethod method) {
+			this.kinds = kinds;
+			this.method = method;
+		}
+		
+		/** Get the kinds of all arguments, or null if some argument has no kind */
+		static Object[] kinds(Varargs args) {
+			Object[] k = new Object[args.narg()];
+			for ( int i=0; i<k.length; i++ )
+				if ( (k[i] = CoerceLuaToJava.kind(args.arg(i+1))) == null )
+					return null;
+			return k;
+		}
+		
+		/** Test if arguments of the given kinds are of the kinds this choice was made for */
+		boolean matches(Object[] k) {
+			if ( k.length != kinds.length )
+				return false;
+			for ( int i=0; i<k.length; i++ )
+				if ( k[i] != kinds[i] )
+					return false;
+			return true;
+		}
+	}
+
 }
@@ -30,6 +30,7 @@ import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.lib.BaseLib;
 import org.luaj.vm2.lib.LibFunction;
 import org.luaj.vm2.lib.ResourceFinder;
+import org.luaj.vm2.lib.StampedResourceFinder;
 
 /** 
  * Subclass of {@link BaseLib} and {@link LibFunction} which implements the lua basic library functions
@@ -39,6 +40,8 @@ import org.luaj.vm2.lib.ResourceFinder;
  * {@link ResourceFinder} using {@link Class#getResource(String)}. 
  * The {@link JseBaseLib} implements {@link FINDER} by scanning the current directory
  * first, then falling back to   {@link Class#getResource(String)} if that fails.
+ * Files in the directory are stamped with their modification time and length, 
+ * so that loading a file that has not changed reuses what was compiled before.  
  * Otherwise, the behavior is the same as that of {@link BaseLib}.  
  * <p>  
  * Typically, this library is included as part of a call to 
@@ -65,7 +68,7 @@ import org.luaj.vm2.lib.ResourceFinder;
  * @see <a href="http://www.lua.org/manual/5.1/manual.html#5.1">http://www.lua.org/manual/5.1/manual.html#5.1</a>
  */
 
-public class JseBaseLib extends org.luaj.vm2.lib.BaseLib {
+public class JseBaseLib extends org.luaj.vm2.lib.BaseLib implements StampedResourceFinder {
 
 	/** Construct a JSE base library instance */
 	public JseBaseLib() {
@@ -96,4 +99,17 @@ public class JseBaseLib extends org.luaj.vm2.lib.BaseLib {
 			return null;
 		}
 	}
+
+	/** 
+	 * Get the stamp of a file in the current working directory, 
+	 * made from its modification time and length.
+	 * 
+	 * @param filename
+	 * @return the stamp, or 0 if the file is not found as a plain file. 
+	 */
+	public long getStamp(String filename) {
+		File f = new File(filename);
+		long t = f.lastModified();
+		return t!=0 && f.isFile()? t*31+f.length(): 0;
+	}
 }
@@ -27,6 +27,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaString;
@@ -39,7 +43,19 @@ import org.luaj.vm2.lib.LibFunction;
  * Subclass of {@link IoLib} and therefore {@link LibFunction} which implements the lua standard {@code io} 
  * library for the JSE platform. 
  * <p> 
- * It uses RandomAccessFile to implement seek on files.  
+ * It uses a {@link FileChannel} with its own buffer to implement files, 
+ * so that reading a line or a few bytes does not cost a system call per byte.  
+ * The buffer holds 8192 bytes unless changed by {@code file:setvbuf()}, 
+ * and is written out when full, on flush, seek or close, 
+ * and also at the end of each line in "line" mode or on every write in "no" mode.  
+ * Files opened for writing that are still open when the virtual machine exits 
+ * are flushed and closed then, as the C library does at exit, 
+ * or earlier by calling {@link #closeAll()}, for instance when the application embedding lua stops.  
+ * <p>
+ * Files opened only for reading that are at least as long as the system property 
+ * {@code luaj.io.mmap}, in bytes, are mapped into memory instead of read into the buffer, 
+ * which suits large data files read once at startup.  
+ * By default no files are mapped.
  * <p>
  * Typically, this library is included as part of a call to 
  * {@link JsePlatform#standardGlobals()}
@@ -79,6 +95,58 @@ public class JseIoLib extends IoLib {
 		return new FileImpl(BaseLib.instance.STDOUT);
 	}
 	
+	/** Files opened for reading of at least this many bytes are memory mapped, none if 0 */
+	private static final long MMAP_SIZE = Long.getLong("luaj.io.mmap", 0).longValue();
+
+	/** Size of the buffer of a file until changed by setvbuf */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Files opened for writing and not yet closed, guarded by itself */
+	private static final Set writing = new HashSet();
+
+	/** Whether the shutdown hook closing the files in {@link #writing} has been added */
+	private static boolean hooked = false;
+
+	/** 
+	 * Flush and close every file opened for writing that has not been closed yet, 
+	 * so that no written bytes are left in its buffer. 
+	 * Called when the virtual machine exits, 
+	 * and may be called when the lua code that opened the files is done with them.
+	 */
+	public static void closeAll() {
+		Object[] files;
+		synchronized ( writing ) {
+			files = writing.toArray();
+		}
+		for ( int i=0; i<files.length; i++ ) {
+			try {
+				((File) files[i]).close();
+			} catch ( IOException e ) {
+				// nothing to report it to, go on with the rest
+			}
+		}
+	}
+
+	private static void track(File f) {
+		synchronized ( writing ) {
+			writing.add(f);
+			if ( ! hooked ) {
+				hooked = true;
+				Runtime.getRuntime().addShutdownHook(new Thread("luaj io close") {
+					public void run() {
+						closeAll();
+					}
+				});
+			}
+		}
+	}
+
+	private static void untrack(File f) {
+		synchronized ( writing ) {
+			writing.remove(f);
+		}
+	}
+	
 	protected File openFile( String filename, boolean readMode, boolean appendMode, boolean updateMode, boolean binaryMode ) throws IOException {
 		RandomAccessFile f = new RandomAccessFile(filename,readMode? "r": "rw");
 		if ( appendMode ) {
@@ -87,7 +155,11 @@ public class JseIoLib extends IoLib {
 			if ( ! readMode )
 				f.setLength(0);
 		}
-		return new FileImpl( f );
+		if ( readMode && MMAP_SIZE > 0 && f.length() >= MMAP_SIZE && f.length() <= Integer.MAX_VALUE ) {
+			FileChannel c = f.getChannel();
+			return new ChannelFileImpl( f, c.map(FileChannel.MapMode.READ_ONLY, 0, c.size()) );
+		}
+		return new ChannelFileImpl( f, ! readMode );
 	}
 	
 	protected File openProgram(String prog, String mode) throws IOException {
@@ -100,44 +172,37 @@ public class JseIoLib extends IoLib {
 	protected File tmpFile() throws IOException {
 		java.io.File f = java.io.File.createTempFile(".luaj","bin");
 		f.deleteOnExit();
-		return new FileImpl( new RandomAccessFile(f,"rw") );
+		return new ChannelFileImpl( new RandomAccessFile(f,"rw"), true );
 	}
 	
 	private static void notimplemented() {
 		throw new LuaError("not implemented");
 	}
 	
+	/** File backed by the streams of stdin, stdout or a program */
 	private final class FileImpl extends File {
-		private final RandomAccessFile file;
 		private final InputStream is;
 		private final OutputStream os;
 		private boolean closed = false;
 		private boolean nobuffer = false;
-		private FileImpl( RandomAccessFile file, InputStream is, OutputStream os ) {
-			this.file = file;
+		private FileImpl( InputStream is, OutputStream os ) {
 			this.is = is!=null? is.markSupported()? is: new BufferedInputStream(is): null;
 			this.os = os;
 		}
-		private FileImpl( RandomAccessFile f ) {
-			this( f, null, null );
-		}
 		private FileImpl( InputStream i ) {
-			this( null, i, null );
+			this( i, null );
 		}
 		private FileImpl( OutputStream o ) {
-			this( null, null, o );
+			this( null, o );
 		}
 		public String tojstring() {
 			return "file ("+this.hashCode()+")";
 		}
 		public boolean isstdfile() {
-			return file == null;
+			return true;
 		}
 		public void close() throws IOException  {
 			closed = true;
-			if ( file != null ) {
-				file.close();
-			}
 		}
 		public void flush() throws IOException {
 			if ( os != null )
@@ -146,8 +211,6 @@ public class JseIoLib extends IoLib {
 		public void write(LuaString s) throws IOException {
 			if ( os != null )
 				os.write( s.m_bytes, s.m_offset, s.m_length );
-			else if ( file != null )
-				file.write( s.m_bytes, s.m_offset, s.m_length );
 			else
 				notimplemented();
 			if ( nobuffer )
@@ -157,16 +220,6 @@ public class JseIoLib extends IoLib {
 			return closed;
 		}
 		public int seek(String option, int pos) throws IOException {
-			if ( file != null ) {
-				if ( "set".equals(option) ) {
-					file.seek(pos);
-				} else if ( "end".equals(option) ) {
-					file.seek(file.length()+pos);
-				} else {
-					file.seek(file.getFilePointer()+pos);
-				}
-				return (int) file.getFilePointer();
-			}
 			notimplemented();
 			return 0;
 		}
@@ -176,7 +229,7 @@ public class JseIoLib extends IoLib {
 
 		// get length remaining to read
 		public int remaining() throws IOException {
-			return file!=null? (int) (file.length()-file.getFilePointer()): -1;
+			return -1;
 		}
 		
 		// peek ahead one character
@@ -186,11 +239,6 @@ public class JseIoLib extends IoLib {
 				int c = is.read();
 				is.reset();
 				return c;
-			} else if ( file != null ) {
-				long fp = file.getFilePointer();
-				int c = file.read();
-				file.seek(fp);
-				return c;
 			}
 			notimplemented();
 			return 0;
@@ -200,18 +248,13 @@ public class JseIoLib extends IoLib {
 		public int read() throws IOException {
 			if ( is != null ) 
 				return is.read();
-			else if ( file != null ) {
-				return file.read();
-			}
 			notimplemented();
 			return 0;
 		}
 
 		// return number of bytes read if positive, -1 if eof, throws IOException
 		public int read(byte[] bytes, int offset, int length) throws IOException {
-			if (file!=null) {
-				return file.read(bytes, offset, length);
-			} else if (is!=null) {
+			if (is!=null) {
 				return is.read(bytes, offset, length);
 			} else {
 				notimplemented();
@@ -219,4 +262,294 @@ public class JseIoLib extends IoLib {
 			return length;
 		}
 	}
+
+	/** 
+	 * File on disk, read and written through a {@link FileChannel} and a buffer.
+	 * <p>
+	 * The buffer holds the bytes of the file from {@code start} on.  
+	 * When reading, the first {@code fill} bytes of it have been read from the file 
+	 * and {@code pos} is the next one to return.
+	 * When {@code dirty}, the first {@code pos} bytes of it have been written 
+	 * but not yet passed on to the file.  
+	 * A memory mapped file is a buffer holding the whole file that is never refilled. 
+	 * <p>
+	 * Written bytes are passed on when the buffer is full, and on flush, seek and close. 
+	 * A file opened for writing is kept in {@link #writing} until it is closed, 
+	 * so the bytes in its buffer reach the file at exit even if lua never closes it.  
+	 * A file only read from is not kept, its descriptor is released by the channel's own cleanup once it is unreachable. 
+	 * <p>
+	 * Lines are read by scanning the buffer for the end of line, 
+	 * and are returned as strings sharing the bytes of the buffer when they fit in it, 
+	 * in which case the buffer is {@code shared} and is replaced rather than refilled.
+	 */
+	private final class ChannelFileImpl extends File {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final boolean mapped;
+		private final boolean writable;
+		private ByteBuffer buf;
+		private long start;
+		private int pos;
+		private int fill;
+		private boolean dirty = false;
+		private boolean shared = false;
+		private boolean closed = false;
+		private boolean nobuffer = false;
+		private boolean linebuffer = false;
+		private ChannelFileImpl( RandomAccessFile file, boolean writable ) throws IOException {
+			this.file = file;
+			this.channel = file.getChannel();
+			this.mapped = false;
+			this.writable = writable;
+			this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+			this.start = channel.position();
+			if ( writable )
+				track(this);
+		}
+		private ChannelFileImpl( RandomAccessFile file, ByteBuffer map ) throws IOException {
+			this.file = file;
+			this.channel = file.getChannel();
+			this.mapped = true;
+			this.writable = false;
+			this.buf = map;
+			this.fill = map.limit();
+		}
+		public String tojstring() {
+			return "file ("+this.hashCode()+")";
+		}
+		public boolean isstdfile() {
+			return false;
+		}
+		public void close() throws IOException  {
+			closed = true;
+			try {
+				flushbuffer();
+			} finally {
+				if ( writable )
+					untrack(this);
+				file.close();
+			}
+		}
+		public void flush() throws IOException {
+			flushbuffer();
+		}
+		public void write(LuaString s) throws IOException {
+			if ( ! writable )
+				throw new IOException("file not open for writing");
+			if ( ! dirty ) {
+				start += pos;
+				pos = fill = 0;
+				dirty = true;
+				unshare();
+			}
+			int n = s.m_length;
+			if ( n > buf.capacity() - pos ) {
+				flushbuffer();
+				if ( n >= buf.capacity() ) {
+					start += writefully(ByteBuffer.wrap(s.m_bytes, s.m_offset, n), start);
+					return;
+				}
+				dirty = true;
+			}
+			buf.position(pos);
+			buf.put(s.m_bytes, s.m_offset, n);
+			pos += n;
+			if ( nobuffer || (linebuffer && s.indexOf((byte)'\n', 0) >= 0) )
+				flushbuffer();
+		}
+		public boolean isclosed() {
+			return closed;
+		}
+		public int seek(String option, int offset) throws IOException {
+			flushbuffer();
+			long target;
+			if ( "set".equals(option) ) {
+				target = offset;
+			} else if ( "end".equals(option) ) {
+				target = channel.size()+offset;
+			} else {
+				target = start+pos+offset;
+			}
+			if ( target >= start && target <= start+fill ) {
+				pos = (int) (target-start);
+			} else if ( mapped ) {
+				pos = (int) Math.min(target, Integer.MAX_VALUE);
+			} else {
+				start = target;
+				pos = fill = 0;
+			}
+			return (int) target;
+		}
+		public void setvbuf(String mode, int size) {
+			nobuffer = "no".equals(mode);
+			linebuffer = "line".equals(mode);
+			if ( mapped || size <= 0 || size == buf.capacity() )
+				return;
+			try {
+				flushbuffer();
+			} catch ( IOException e ) {
+				throw new LuaError(e);
+			}
+			start += pos;
+			pos = fill = 0;
+			buf = ByteBuffer.allocate(size);
+			shared = false;
+		}
+
+		// get length remaining to read
+		public int remaining() throws IOException {
+			flushbuffer();
+			return (int) ((mapped? fill: channel.size()) - (start+pos));
+		}
+		
+		// peek ahead one character
+		public int peek() throws IOException {
+			if ( pos >= fill && ! refill() )
+				return -1;
+			return buf.get(pos) & 0xff;
+		}		
+		
+		// return char if read, -1 if eof, throw IOException on other exception 
+		public int read() throws IOException {
+			if ( pos >= fill && ! refill() )
+				return -1;
+			return buf.get(pos++) & 0xff;
+		}
+
+		// return number of bytes read if positive, -1 if eof, throws IOException
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int n = 0;
+			while ( n < length ) {
+				if ( pos >= fill ) {
+					if ( ! mapped && length - n >= buf.capacity() ) {
+						flushbuffer();
+						start += pos;
+						pos = fill = 0;
+						int r = channel.read(ByteBuffer.wrap(bytes, offset+n, length-n), start);
+						if ( r <= 0 )
+							break;
+						start += r;
+						n += r;
+						continue;
+					}
+					if ( ! refill() )
+						break;
+				}
+				int r = Math.min(fill-pos, length-n);
+				buf.position(pos);
+				buf.get(bytes, offset+n, r);
+				pos += r;
+				n += r;
+			}
+			return n==0 && length>0? -1: n;
+		}
+
+		public LuaValue readline() throws IOException {
+			byte[] part = null;
+			int n = 0;
+			while ( pos < fill || refill() ) {
+				int i = pos;
+				byte b;
+				while ( i < fill && (b = buf.get(i)) != '\n' && b != 0 )
+					++i;
+				if ( i < fill ) {
+					int s = pos;
+					pos = i+1;
+					if ( part == null )
+						return line(s, i);
+					part = append(part, n, s, i);
+					return strip(part, n+i-s);
+				}
+				part = append(part, n, pos, fill);
+				n += fill-pos;
+				pos = fill;
+			}
+			// like freaduntil, nothing but carriage returns before the end of file is no line
+			LuaString l = part != null? strip(part, n): null;
+			return l != null && l.m_length > 0? (LuaValue) l: NIL;
+		}
+
+		/** The line in buffer positions s up to e, sharing the buffer if possible */
+		private LuaString line(int s, int e) {
+			if ( ! mapped ) {
+				byte[] a = buf.array();
+				int i = s;
+				while ( i < e && a[i] != '\r' )
+					++i;
+				if ( i == e ) {
+					shared = true;
+					return LuaString.valueOf(a, s, e-s);
+				}
+			}
+			return strip(append(null, 0, s, e), e-s);
+		}
+
+		/** Copy buffer positions s up to e after the first n bytes of part, growing it as needed */
+		private byte[] append(byte[] part, int n, int s, int e) {
+			if ( part == null || n+e-s > part.length ) {
+				byte[] a = new byte[Math.max(n+e-s, part!=null? part.length*2: 0)];
+				if ( part != null )
+					System.arraycopy(part, 0, a, 0, n);
+				part = a;
+			}
+			buf.position(s);
+			buf.get(part, n, e-s);
+			return part;
+		}
+
+		/** String of the first n bytes of part without carriage returns */
+		private LuaString strip(byte[] part, int n) {
+			int j = 0;
+			for ( int i=0; i<n; i++ )
+				if ( part[i] != '\r' )
+					part[j++] = part[i];
+			return LuaString.valueOf(part, 0, j);
+		}
+
+		/** Replace the buffer by a new one if strings share its bytes */
+		private void unshare() {
+			if ( shared ) {
+				buf = ByteBuffer.allocate(buf.capacity());
+				shared = false;
+			}
+		}
+
+		/** Read the bytes following the buffer into it, return false at end of file */
+		private boolean refill() throws IOException {
+			if ( mapped )
+				return false;
+			flushbuffer();
+			start += pos;
+			pos = fill = 0;
+			unshare();
+			buf.clear();
+			int r = channel.read(buf, start);
+			if ( r <= 0 ) 
+				return false;
+			fill = r;
+			return true;
+		}
+
+		/** Pass the bytes written into the buffer on to the file */
+		private void flushbuffer() throws IOException {
+			if ( ! dirty )
+				return;
+			buf.position(0);
+			buf.limit(pos);
+			try {
+				start += writefully(buf, start);
+			} finally {
+				buf.clear();
+				pos = fill = 0;
+				dirty = false;
+			}
+		}
+
+		private int writefully(ByteBuffer b, long position) throws IOException {
+			int n = 0;
+			while ( b.hasRemaining() )
+				n += channel.write(b, position+n);
+			return n;
+		}
+	}
 }
@@ -22,6 +22,7 @@
 package org.luaj.vm2.lib.jse;
 
 import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.LoadState;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
@@ -67,7 +68,8 @@ import org.luaj.vm2.lib.TableLib;
  * <li>{@link JseOsLib}</li>
  * <li>{@link LuajavaLib}</li>
  * </ul>
- * In addition, the {@link LuaC} compiler is installed so lua files may be loaded in their source form. 
+ * In addition, unless a compiler such as {@link org.luaj.vm2.luajc.LuaJC} was installed before, 
+ * the {@link LuaC} compiler is installed so lua files may be loaded in their source form. 
  * <p> 
  * The debug globals are simply the standard globals plus the {@code debug} library {@link DebugLib}.
  * <p>
@@ -97,10 +99,29 @@ public class JsePlatform {
 		_G.load(new JseOsLib());
 		_G.load(new LuajavaLib());
 		LuaThread.setGlobals(_G);
-		LuaC.install();
+		if ( LoadState.compiler == null )
+			LuaC.install();
 		return _G;		
 	}
 
+	/**
+	 * Create a standard set of globals for JSE including all the libraries, 
+	 * selecting how coroutines are carried by java threads.
+	 * <p>
+	 * The mode applies to the {@link org.luaj.vm2.LuaState} entered by the current java thread,
+	 * so to give globals a mode of their own, create them in a state of their own. 
+	 * 
+	 * @param coroutineMode one of {@link LuaThread#COROUTINE_PLATFORM_THREADS}, 
+	 * {@link LuaThread#COROUTINE_POOLED_THREADS} or {@link LuaThread#COROUTINE_VIRTUAL_THREADS}
+	 * @return Table of globals initialized with the standard JSE libraries
+	 * @see #standardGlobals()
+	 * @see LuaThread#setCoroutineMode(int)
+	 */
+	public static LuaTable standardGlobals(int coroutineMode) {
+		LuaThread.setCoroutineMode(coroutineMode);
+		return standardGlobals();
+	}
+
 	/** Create standard globals including the {@link debug} library.
 	 * 
 	 * @return Table of globals initialized with the standard JSE and debug libraries
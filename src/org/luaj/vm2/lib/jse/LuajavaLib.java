@@ -101,7 +101,7 @@ public class LuajavaLib extends VarArgFunction {
 				LuaTable t = new LuaTable();
 				bind( t, LuajavaLib.class, NAMES, BINDCLASS );
 				env.set("luajava", t);
-				PackageLib.instance.LOADED.set("luajava", t);
+				PackageLib.getInstance().LOADED.set("luajava", t);
 				return t;
 			}
 			case BINDCLASS: {
@@ -0,0 +1,127 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Cache of the {@link LuaUserdata} created for java objects, 
+ * so that an object passed to lua repeatedly is represented by the same userdata.
+ * <p>
+ * Objects are compared by identity. 
+ * The cache refers to userdata only weakly, so an entry remains only while 
+ * lua code still holds the userdata, and neither the userdata 
+ * nor the java object is kept reachable by the cache.
+ * <p>
+ * This is intended for long-lived objects such as players and worlds 
+ * which are handed to scripts over and over, 
+ * where it avoids creating a new userdata each time:
+ * <pre> {@code
+ * UserdataCache cache = new UserdataCache();
+ * env.set( "world", cache.coerce(player.getWorld()) );
+ * } </pre>
+ * Values other than userdata, such as strings and numbers, are coerced as usual and not cached.
+ * All methods are synchronized, so a cache may be shared between threads.
+ * 
+ * @see CoerceJavaToLua
+ */
+public class UserdataCache {
+
+	private static final int MIN_CAPACITY = 16;
+
+	/** Weak reference to a cached userdata, chained by the identity hash of its object */
+	private static final class Entry extends WeakReference {
+		final int hash;
+		Entry next;
+		Entry(LuaValue userdata, int hash, Entry next, ReferenceQueue queue) {
+			super(userdata, queue);
+			this.hash = hash;
+			this.next = next;
+		}
+	}
+
+	private final ReferenceQueue queue = new ReferenceQueue();
+	private Entry[] table = new Entry[MIN_CAPACITY];
+	private int entries;
+
+	/**
+	 * Coerce a java object to a lua value, returning the same userdata as before
+	 * if the object was coerced earlier and that userdata is still in use.
+	 * @param o Java object needing conversion
+	 * @return {@link LuaValue} corresponding to the supplied Java value
+	 * @see CoerceJavaToLua#coerce(Object)
+	 */
+	public synchronized LuaValue coerce(Object o) {
+		if ( o == null )
+			return LuaValue.NIL;
+		expunge();
+		int hash = System.identityHashCode(o);
+		for ( Entry e = table[hash & (table.length-1)]; e != null; e = e.next ) {
+			LuaValue u = (LuaValue) e.get();
+			if ( u != null && u.touserdata() == o )
+				return u;
+		}
+		LuaValue u = CoerceJavaToLua.coerce(o);
+		if ( u.isuserdata() && !(u instanceof JavaClass) ) {
+			if ( entries >= table.length - (table.length>>2) )
+				resize(table.length<<1);
+			int i = hash & (table.length-1);
+			table[i] = new Entry(u, hash, table[i], queue);
+			++entries;
+		}
+		return u;
+	}
+
+	/** Remove the entries of userdata that have been collected */
+	private void expunge() {
+		for ( Reference r; (r = queue.poll()) != null; ) {
+			Entry dead = (Entry) r;
+			int i = dead.hash & (table.length-1);
+			for ( Entry e = table[i], prev = null; e != null; prev = e, e = e.next )
+				if ( e == dead ) {
+					if ( prev == null )
+						table[i] = e.next;
+					else
+						prev.next = e.next;
+					--entries;
+					break;
+				}
+		}
+	}
+
+	private void resize(int capacity) {
+		Entry[] old = table;
+		table = new Entry[capacity];
+		for ( int j=0; j<old.length; j++ )
+			for ( Entry e = old[j], next; e != null; e = next ) {
+				next = e.next;
+				int i = e.hash & (capacity-1);
+				e.next = table[i];
+				table[i] = e;
+			}
+	}
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import org.luaj.vm2.Buffer;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Base class for closures whose {@link Prototype} has been compiled
+ * into java bytecode by {@link LuaJC}.
+ * <p>
+ * Each compiled function is a subclass of {@link CompiledClosure}
+ * which implements {@link #run(LuaValue[], Varargs, UpValue[], LuaState)}
+ * as a straight-line translation of the lua bytecode,
+ * so that no instruction decoding or dispatch takes place at runtime.
+ * <p>
+ * Calls, stack allocation, upvalues and the call stack are all
+ * managed exactly as for an interpreted {@link LuaClosure},
+ * and like the interpreter the generated code copies returned values
+ * out of the registers so that the register array can be reused,
+ * and when the debug library is enabled execution falls back to the
+ * interpreter so that hooks see every instruction.
+ * <p>
+ * The static methods are helpers called from the generated code
+ * for the more involved instructions.
+ *
+ * @see LuaJC
+ * @see JavaGen
+ */
+public abstract class CompiledClosure extends LuaClosure {
+
+	/** Supply the prototype and initial environment */
+	protected CompiledClosure(Prototype p, LuaValue env) {
+		super( p, env );
+	}
+
+	protected final Varargs execute( LuaState s, LuaValue[] stack, Varargs varargs ) {
+		if (s.isDebugEnabled())
+			return super.execute(s, stack, varargs);
+
+		// upvalues are only possible when closures create closures
+		UpValue[] openups = p.p.length>0? s.getRunning().newUpValues(stack.length): null;
+
+		// create varargs "arg" table
+		if ( p.is_vararg >= Lua.VARARG_NEEDSARG )
+			stack[p.numparams] = new LuaTable(varargs);
+
+		LuaThread.onCall( s, this );
+		try {
+			s.checkpoint();
+			return run( stack, varargs, openups, s );
+		} catch ( LuaError le ) {
+			throw le;
+		} catch ( Throwable t ) {
+			LuaError le = new LuaError(t);
+			throw le;
+		} finally {
+			LuaThread.onReturn( s );
+			if ( openups != null ) {
+				for ( int u=openups.length; --u>=0; )
+					if ( openups[u] != null ) {
+						openups[u].close();
+						openups[u] = null;
+					}
+				s.getRunning().releaseUpValues(openups);
+			}
+		}
+	}
+
+	/**
+	 * Execute the compiled body of the function.
+	 * @param stack the register array, with parameters filled in
+	 * @param varargs the variable arguments, if any
+	 * @param openups array of open upvalues, or null if the function creates no closures
+	 * @param s the {@link LuaState} of the current java thread, for {@link LuaState#checkpoint()} in loops
+	 * @return the return values, possibly a pending tail call
+	 */
+	protected abstract Varargs run( LuaValue[] stack, Varargs varargs, UpValue[] openups, LuaState s );
+
+	// ------------------------------------------------------------------
+	// helpers called from generated code
+	// ------------------------------------------------------------------
+
+	/** R(b) .. ... .. R(c) */
+	public static LuaValue concat(LuaValue[] stack, int b, int c) {
+		if ( c > b+1 ) {
+			Buffer sb = stack[c].buffer();
+			while ( --c>=b )
+				sb = stack[c].concat(sb);
+			return sb.value();
+		} else {
+			return stack[c-1].concat(stack[c]);
+		}
+	}
+
+	/** Arguments R(a), ... up to the top set by the previous instruction */
+	public static Varargs topargs(LuaValue[] stack, int a, int top, Varargs v) {
+		return LuaValue.varargsOf(stack, a, top-v.narg()-a, v);
+	}
+
+	/** Copy of R(a), ... up to the top set by the previous instruction, for returning */
+	public static Varargs topresults(LuaValue[] stack, int a, int top, Varargs v) {
+		return frameVarargs(stack, a, top-v.narg()-a, v);
+	}
+
+	/** R(a), ... ,R(a+c-2) := v */
+	public static void results(LuaValue[] stack, int a, int c, Varargs v) {
+		while ( --c > 0 )
+			stack[a+c-1] = v.arg(c);
+	}
+
+	/** R(a)-=R(a+2) */
+	public static void forprep(LuaValue[] stack, int a) {
+		LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
+		LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
+		LuaValue step  = stack[a + 2].checknumber("'for' step must be a number");
+		stack[a] = init.sub(step);
+		stack[a + 1] = limit;
+		stack[a + 2] = step;
+	}
+
+	/** R(a)+=R(a+2): if R(a) <?= R(a+1) then { R(a+3)=R(a); return true } */
+	public static boolean forloop(LuaValue[] stack, int a) {
+		LuaValue limit = stack[a + 1];
+		LuaValue step  = stack[a + 2];
+		LuaValue idx   = step.add(stack[a]);
+		if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
+			stack[a] = idx;
+			stack[a + 3] = idx;
+			return true;
+		}
+		return false;
+	}
+
+	/** R(a+3), ... ,R(a+2+c) := R(a)(R(a+1), R(a+2)): if R(a+3) ~= nil then { R(a+2)=R(a+3); return true } */
+	public static boolean tforloop(LuaValue[] stack, int a, int c) {
+		return stack[a].iterate(stack, a, c);
+	}
+
+	/** R(a)[(c-1)*FPF+i] := R(a+i), 1 <= i <= b */
+	public static void setlist(LuaValue[] stack, int a, int b, int c, int top, Varargs v) {
+		int offset = (c-1) * Lua.LFIELDS_PER_FLUSH;
+		LuaValue o = stack[a];
+		if ( b == 0 ) {
+			b = top - a - 1;
+			int m = b - v.narg();
+			int j=1;
+			for ( ;j<=m; j++ )
+				o.set(offset+j, stack[a + j]);
+			for ( ;j<=b; j++ )
+				o.set(offset+j, v.arg(j-m));
+		} else {
+			o.presize( offset + b );
+			for (int j=1; j<=b; j++)
+				o.set(offset+j, stack[a + j]);
+		}
+	}
+
+	/** close all variables in the stack up to (>=) R(a) */
+	public static void close(UpValue[] openups, int a) {
+		for ( int b=openups.length; --b>=a; )
+			if ( openups[b]!=null ) {
+				openups[b].close();
+				openups[b] = null;
+			}
+	}
+
+	/** find or create the open upvalue for R(b) */
+	public static UpValue upvalue(UpValue[] openups, LuaValue[] stack, int b) {
+		return openups[b]!=null? openups[b]: (openups[b]=new UpValue(stack,b));
+	}
+
+	/** R(a), R(a+1), ..., R(a+b-2) = vararg */
+	public static void vararg(LuaValue[] stack, int a, int b, Varargs varargs) {
+		for ( int j=1; j<b; ++j )
+			stack[a+j-1] = varargs.arg(j);
+	}
+}
@@ -0,0 +1,411 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+
+/**
+ * Minimal assembler for java class files, sufficient for the code
+ * produced by {@link JavaGen}.
+ * <p>
+ * Classes are written in the version 49 format, so no stack map frames
+ * need to be computed and the type-inferencing verifier is used.
+ * <p>
+ * Only the constant pool entries, instructions and attributes needed
+ * by the generated closures are supported.
+ *
+ * @see JavaGen
+ */
+class JavaBuilder {
+
+	// class file constants
+	static final int ACC_PUBLIC    = 0x0001;
+	static final int ACC_PROTECTED = 0x0004;
+	static final int ACC_FINAL     = 0x0010;
+	static final int ACC_SUPER     = 0x0020;
+
+	private static final int CLASS_MAGIC = 0xCAFEBABE;
+	private static final int CLASS_MAJOR = 49;
+
+	// constant pool tags
+	private static final int CONSTANT_Utf8        = 1;
+	private static final int CONSTANT_Integer     = 3;
+	private static final int CONSTANT_Class       = 7;
+	private static final int CONSTANT_Fieldref    = 9;
+	private static final int CONSTANT_Methodref   = 10;
+	private static final int CONSTANT_NameAndType = 12;
+
+	// jvm opcodes
+	static final int ICONST_0      = 0x03;
+	static final int BIPUSH        = 0x10;
+	static final int SIPUSH        = 0x11;
+	static final int LDC_W         = 0x13;
+	static final int ILOAD         = 0x15;
+	static final int ALOAD         = 0x19;
+	static final int AALOAD        = 0x32;
+	static final int ISTORE        = 0x36;
+	static final int ASTORE        = 0x3a;
+	static final int AASTORE       = 0x53;
+	static final int POP           = 0x57;
+	static final int DUP           = 0x59;
+	static final int IADD          = 0x60;
+	static final int IFEQ          = 0x99;
+	static final int IFNE          = 0x9a;
+	static final int GOTO          = 0xa7;
+	static final int ARETURN       = 0xb0;
+	static final int RETURN        = 0xb1;
+	static final int GETSTATIC     = 0xb2;
+	static final int GETFIELD      = 0xb4;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC  = 0xb8;
+	static final int NEW           = 0xbb;
+
+	/** Thrown when a function cannot be represented within the limits of this class file writer */
+	static class LimitException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		LimitException(String message) {
+			super(message);
+		}
+	}
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream cp = new DataOutputStream(pool);
+	private final Hashtable entries = new Hashtable();
+	private int poolsize = 1;
+
+	private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private final DataOutputStream mt = new DataOutputStream(methods);
+	private int nmethods = 0;
+
+	private final int thisclass;
+	private final int superclass;
+
+	/**
+	 * Start a new class
+	 * @param classname internal name of the class, with '/' separators
+	 * @param supername internal name of the super class
+	 */
+	JavaBuilder(String classname, String supername) {
+		thisclass = classref(classname);
+		superclass = classref(supername);
+	}
+
+	// ------------------------------------------------------------------
+	// constant pool
+	// ------------------------------------------------------------------
+
+	private int entry(String key) {
+		Integer i = (Integer) entries.get(key);
+		return i!=null? i.intValue(): 0;
+	}
+
+	private int define(String key) {
+		int index = poolsize++;
+		entries.put(key, Integer.valueOf(index));
+		if ( poolsize > 0xffff )
+			throw new LimitException("constant pool overflow");
+		return index;
+	}
+
+	int utf8(String s) {
+		String key = "U"+s;
+		int index = entry(key);
+		if ( index == 0 ) {
+			try {
+				cp.writeByte(CONSTANT_Utf8);
+				cp.writeUTF(s);
+			} catch ( IOException e ) {
+				throw new IllegalStateException(e.toString());
+			}
+			index = define(key);
+		}
+		return index;
+	}
+
+	int integer(int value) {
+		String key = "I"+value;
+		int index = entry(key);
+		if ( index == 0 ) {
+			write(CONSTANT_Integer, value);
+			index = define(key);
+		}
+		return index;
+	}
+
+	int classref(String name) {
+		String key = "C"+name;
+		int index = entry(key);
+		if ( index == 0 ) {
+			int n = utf8(name);
+			write16(CONSTANT_Class, n);
+			index = define(key);
+		}
+		return index;
+	}
+
+	private int nameandtype(String name, String desc) {
+		String key = "N"+name+" "+desc;
+		int index = entry(key);
+		if ( index == 0 ) {
+			int n = utf8(name), d = utf8(desc);
+			write16(CONSTANT_NameAndType, n, d);
+			index = define(key);
+		}
+		return index;
+	}
+
+	int fieldref(String owner, String name, String desc) {
+		return memberref(CONSTANT_Fieldref, "F", owner, name, desc);
+	}
+
+	int methodref(String owner, String name, String desc) {
+		return memberref(CONSTANT_Methodref, "M", owner, name, desc);
+	}
+
+	private int memberref(int tag, String kind, String owner, String name, String desc) {
+		String key = kind+owner+"."+name+" "+desc;
+		int index = entry(key);
+		if ( index == 0 ) {
+			int c = classref(owner), nt = nameandtype(name, desc);
+			write16(tag, c, nt);
+			index = define(key);
+		}
+		return index;
+	}
+
+	private void write(int tag, int value) {
+		try {
+			cp.writeByte(tag);
+			cp.writeInt(value);
+		} catch ( IOException e ) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	private void write16(int tag, int a) {
+		try {
+			cp.writeByte(tag);
+			cp.writeShort(a);
+		} catch ( IOException e ) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	private void write16(int tag, int a, int b) {
+		try {
+			cp.writeByte(tag);
+			cp.writeShort(a);
+			cp.writeShort(b);
+		} catch ( IOException e ) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// methods
+	// ------------------------------------------------------------------
+
+	/**
+	 * Add a method with a code attribute to the class
+	 * @param access access flags
+	 * @param name method name
+	 * @param desc method descriptor
+	 * @param code the code to use as method body
+	 */
+	void method(int access, String name, String desc, Code code) {
+		if ( code.length() > 0xffff )
+			throw new LimitException("method too large");
+		try {
+			int n = utf8(name), d = utf8(desc), attr = utf8("Code");
+			mt.writeShort(access);
+			mt.writeShort(n);
+			mt.writeShort(d);
+			mt.writeShort(1);
+			mt.writeShort(attr);
+			mt.writeInt(12 + code.length());
+			mt.writeShort(code.maxstack);
+			mt.writeShort(code.maxlocals);
+			mt.writeInt(code.length());
+			mt.write(code.bytes, 0, code.length());
+			mt.writeShort(0); // exception table
+			mt.writeShort(0); // attributes
+			++nmethods;
+		} catch ( IOException e ) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	/**
+	 * Produce the bytes of the completed class file
+	 * @return byte array containing the class file
+	 */
+	byte[] toBytes() {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(baos);
+			out.writeInt(CLASS_MAGIC);
+			out.writeShort(0);
+			out.writeShort(CLASS_MAJOR);
+			out.writeShort(poolsize);
+			pool.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisclass);
+			out.writeShort(superclass);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(nmethods);
+			methods.writeTo(out);
+			out.writeShort(0); // attributes
+			out.flush();
+			return baos.toByteArray();
+		} catch ( IOException e ) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	/**
+	 * Byte code buffer for a single method body
+	 */
+	class Code {
+		byte[] bytes = new byte[256];
+		int n = 0;
+		final int maxstack;
+		final int maxlocals;
+
+		Code(int maxstack, int maxlocals) {
+			this.maxstack = maxstack;
+			this.maxlocals = maxlocals;
+		}
+
+		int length() {
+			return n;
+		}
+
+		void op(int b) {
+			if ( n >= bytes.length ) {
+				byte[] b2 = new byte[n*2];
+				System.arraycopy(bytes, 0, b2, 0, n);
+				bytes = b2;
+			}
+			bytes[n++] = (byte) b;
+		}
+
+		void op(int opcode, int u1) {
+			op(opcode);
+			op(u1);
+		}
+
+		void op2(int opcode, int u2) {
+			op(opcode);
+			op(u2>>8);
+			op(u2);
+		}
+
+		void patch2(int at, int u2) {
+			bytes[at] = (byte) (u2>>8);
+			bytes[at+1] = (byte) u2;
+		}
+
+		void aload(int local) {
+			if ( local <= 3 )
+				op(0x2a + local);
+			else
+				op(ALOAD, local);
+		}
+
+		void astore(int local) {
+			if ( local <= 3 )
+				op(0x4b + local);
+			else
+				op(ASTORE, local);
+		}
+
+		void iload(int local) {
+			op(ILOAD, local);
+		}
+
+		void istore(int local) {
+			op(ISTORE, local);
+		}
+
+		void iconst(int value) {
+			if ( value >= -1 && value <= 5 )
+				op(ICONST_0 + value);
+			else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE )
+				op(BIPUSH, value);
+			else if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE )
+				op2(SIPUSH, value);
+			else
+				op2(LDC_W, integer(value));
+		}
+
+		void getstatic(String owner, String name, String desc) {
+			op2(GETSTATIC, fieldref(owner, name, desc));
+		}
+
+		void getfield(String owner, String name, String desc) {
+			op2(GETFIELD, fieldref(owner, name, desc));
+		}
+
+		void invokevirtual(String owner, String name, String desc) {
+			op2(INVOKEVIRTUAL, methodref(owner, name, desc));
+		}
+
+		void invokespecial(String owner, String name, String desc) {
+			op2(INVOKESPECIAL, methodref(owner, name, desc));
+		}
+
+		void invokestatic(String owner, String name, String desc) {
+			op2(INVOKESTATIC, methodref(owner, name, desc));
+		}
+
+		void anew(String classname) {
+			op2(NEW, classref(classname));
+		}
+
+		/**
+		 * Emit a branch whose target is not yet known
+		 * @return position of the branch instruction, for use with {@link #resolve(int, int)}
+		 */
+		int branch(int opcode) {
+			int at = n;
+			op2(opcode, 0);
+			return at;
+		}
+
+		/**
+		 * Resolve a previously emitted branch to a known target
+		 * @param at position returned by {@link #branch(int)}
+		 * @param target code offset of the branch target
+		 */
+		void resolve(int at, int target) {
+			int offset = target - at;
+			if ( offset < Short.MIN_VALUE || offset > Short.MAX_VALUE )
+				throw new LimitException("branch offset too large");
+			patch2(at+1, offset);
+		}
+	}
+}
@@ -0,0 +1,598 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.luajc.JavaBuilder.Code;
+
+/**
+ * Generates the java class for a single lua {@link Prototype}.
+ * <p>
+ * The generated class extends {@link CompiledClosure} and implements
+ * its {@code run} method by translating each lua instruction into
+ * the equivalent java bytecode operating on the same register array
+ * that the interpreter in {@link org.luaj.vm2.LuaClosure} uses.
+ * Register numbers, constant indices and jump targets are resolved
+ * at compile time, so the per-instruction decoding and switch dispatch
+ * of the interpreter disappear.
+ *
+ * @see LuaJC
+ * @see CompiledClosure
+ */
+class JavaGen {
+
+	// internal class names
+	private static final String CLOSURE   = "org/luaj/vm2/luajc/CompiledClosure";
+	private static final String LUACLOSURE = "org/luaj/vm2/LuaClosure";
+	private static final String FUNCTION  = "org/luaj/vm2/LuaFunction";
+	private static final String VALUE     = "org/luaj/vm2/LuaValue";
+	private static final String VARARGS   = "org/luaj/vm2/Varargs";
+	private static final String TABLE     = "org/luaj/vm2/LuaTable";
+	private static final String UPVALUE   = "org/luaj/vm2/UpValue";
+	private static final String PROTOTYPE = "org/luaj/vm2/Prototype";
+	private static final String TAILCALL  = "org/luaj/vm2/TailcallVarargs";
+	private static final String ICACHE    = "org/luaj/vm2/InlineCache";
+	private static final String STATE     = "org/luaj/vm2/LuaState";
+
+	// descriptors
+	private static final String D_VALUE     = "L"+VALUE+";";
+	private static final String D_VARARGS   = "L"+VARARGS+";";
+	private static final String D_UPVALUE   = "L"+UPVALUE+";";
+	private static final String D_PROTOTYPE = "L"+PROTOTYPE+";";
+	private static final String D_STACK     = "["+D_VALUE;
+	private static final String D_UPVALUES  = "["+D_UPVALUE;
+	private static final String D_INIT      = "("+D_PROTOTYPE+D_VALUE+")V";
+	private static final String D_STATE     = "L"+STATE+";";
+	private static final String D_RUN       = "("+D_STACK+D_VARARGS+D_UPVALUES+D_STATE+")"+D_VARARGS;
+	private static final String D_BINARY    = "("+D_VALUE+")"+D_VALUE;
+	private static final String D_UNARY     = "()"+D_VALUE;
+	private static final String D_ICACHE    = "[L"+ICACHE+";";
+	private static final String D_CACHEDGET = "("+D_VALUE+D_ICACHE+"I)"+D_VALUE;
+
+	// locals of the run method
+	private static final int L_THIS    = 0;
+	private static final int L_STACK   = 1;
+	private static final int L_VARARGS = 2;
+	private static final int L_OPENUPS = 3;
+	private static final int L_STATE   = 4;
+	private static final int L_K       = 5;
+	private static final int L_V       = 6;
+	private static final int L_TOP     = 7;
+	private static final int L_NEWCL   = 8;
+	private static final int L_IC      = 9;
+	private static final int MAX_LOCALS = 10;
+
+	/** Generous upper bound of the operand stack depth of any translated instruction */
+	private static final int MAX_STACK = 12;
+
+	private static final String[] ARITH = { "add", "sub", "mul", "div", "mod", "pow" };
+	private static final String[] COMPARE = { "eq_b", "lt_b", "lteq_b" };
+
+	/** Internal class name of the generated class */
+	final String classname;
+
+	/** The prototype being compiled */
+	final Prototype p;
+
+	/** Generators for the child prototypes, null where compilation failed */
+	final JavaGen[] children;
+
+	/** Class file bytes, or null if this prototype could not be compiled */
+	byte[] bytecode;
+
+	/**
+	 * Generate classes for a prototype and all its children.
+	 * @param p the prototype
+	 * @param classname the internal name of the class to generate
+	 */
+	JavaGen(Prototype p, String classname) {
+		this.p = p;
+		this.classname = classname;
+		this.children = new JavaGen[p.p.length];
+		for ( int i=0; i<p.p.length; i++ )
+			children[i] = new JavaGen(p.p[i], classname+"$"+i);
+		try {
+			bytecode = generate();
+		} catch ( JavaBuilder.LimitException e ) {
+			// leave this function to the interpreter
+			bytecode = null;
+		}
+	}
+
+	private byte[] generate() {
+		JavaBuilder jb = new JavaBuilder(classname, CLOSURE);
+
+		// constructor
+		Code init = jb.new Code(3, 3);
+		init.aload(0);
+		init.aload(1);
+		init.aload(2);
+		init.invokespecial(CLOSURE, "<init>", D_INIT);
+		init.op(JavaBuilder.RETURN);
+		jb.method(JavaBuilder.ACC_PUBLIC, "<init>", D_INIT, init);
+
+		// body
+		jb.method(JavaBuilder.ACC_PROTECTED, "run", D_RUN, body(jb));
+		return jb.toBytes();
+	}
+
+	private Code body(JavaBuilder jb) {
+		final int[] code = p.code;
+		final int n = code.length;
+		final int[] offsets = new int[n+1];
+		final int[] branches = new int[n*2];
+		final int[] targets = new int[n*2];
+		int nbranches = 0;
+		Code c = jb.new Code(MAX_STACK, MAX_LOCALS);
+
+		// k = this.p.k; v = NONE; top = 0;
+		c.aload(L_THIS);
+		c.getfield(LUACLOSURE, "p", D_PROTOTYPE);
+		c.getfield(PROTOTYPE, "k", D_STACK);
+		c.astore(L_K);
+		c.aload(L_THIS);
+		c.getfield(LUACLOSURE, "p", D_PROTOTYPE);
+		c.invokestatic(ICACHE, "of", "("+D_PROTOTYPE+")"+D_ICACHE);
+		c.astore(L_IC);
+		c.getstatic(VALUE, "NONE", D_VALUE);
+		c.astore(L_V);
+		c.iconst(0);
+		c.istore(L_TOP);
+
+		for ( int pc=0; pc<n; pc++ ) {
+			offsets[pc] = c.length();
+			int i = code[pc];
+			int a = Lua.GETARG_A(i);
+			int b = Lua.GETARG_B(i);
+			int cc = Lua.GETARG_C(i);
+			int bx = Lua.GETARG_Bx(i);
+			int sbx = Lua.GETARG_sBx(i);
+			switch ( Lua.GET_OPCODE(i) ) {
+
+			case Lua.OP_MOVE:
+				storeBegin(c, a);
+				loadReg(c, b);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_LOADK:
+				storeBegin(c, a);
+				loadK(c, bx);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_LOADBOOL:
+				storeBegin(c, a);
+				c.getstatic(VALUE, b!=0? "TRUE": "FALSE", "Lorg/luaj/vm2/LuaBoolean;");
+				c.op(JavaBuilder.AASTORE);
+				if ( cc != 0 ) {
+					branches[nbranches] = c.branch(JavaBuilder.GOTO);
+					targets[nbranches++] = pc+2;
+				}
+				break;
+
+			case Lua.OP_LOADNIL:
+				for ( int r=a; r<=b; r++ ) {
+					storeBegin(c, r);
+					c.getstatic(VALUE, "NIL", D_VALUE);
+					c.op(JavaBuilder.AASTORE);
+				}
+				break;
+
+			case Lua.OP_GETUPVAL:
+				storeBegin(c, a);
+				loadUpvalue(c, b);
+				c.invokevirtual(UPVALUE, "getValue", "()"+D_VALUE);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_GETGLOBAL:
+				storeBegin(c, a);
+				loadEnv(c);
+				loadK(c, bx);
+				cachedGet(c, pc);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_GETTABLE:
+				storeBegin(c, a);
+				loadReg(c, b);
+				loadRK(c, cc);
+				if ( Lua.ISK(cc) )
+					cachedGet(c, pc);
+				else
+					c.invokevirtual(VALUE, "get", D_BINARY);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_SETGLOBAL:
+				loadEnv(c);
+				loadK(c, bx);
+				loadReg(c, a);
+				c.invokevirtual(VALUE, "set", "("+D_VALUE+D_VALUE+")V");
+				break;
+
+			case Lua.OP_SETUPVAL:
+				loadUpvalue(c, b);
+				loadReg(c, a);
+				c.invokevirtual(UPVALUE, "setValue", "("+D_VALUE+")V");
+				break;
+
+			case Lua.OP_SETTABLE:
+				loadReg(c, a);
+				loadRK(c, b);
+				loadRK(c, cc);
+				c.invokevirtual(VALUE, "set", "("+D_VALUE+D_VALUE+")V");
+				break;
+
+			case Lua.OP_NEWTABLE:
+				storeBegin(c, a);
+				c.anew(TABLE);
+				c.op(JavaBuilder.DUP);
+				c.iconst(b);
+				c.iconst(cc);
+				c.invokespecial(TABLE, "<init>", "(II)V");
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_SELF:
+				storeBegin(c, a+1);
+				loadReg(c, b);
+				c.op(JavaBuilder.AASTORE);
+				storeBegin(c, a);
+				loadReg(c, a+1);
+				loadRK(c, cc);
+				if ( Lua.ISK(cc) )
+					cachedGet(c, pc);
+				else
+					c.invokevirtual(VALUE, "get", D_BINARY);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_ADD:
+			case Lua.OP_SUB:
+			case Lua.OP_MUL:
+			case Lua.OP_DIV:
+			case Lua.OP_MOD:
+			case Lua.OP_POW:
+				storeBegin(c, a);
+				loadRK(c, b);
+				loadRK(c, cc);
+				c.invokevirtual(VALUE, ARITH[Lua.GET_OPCODE(i)-Lua.OP_ADD], D_BINARY);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_UNM:
+			case Lua.OP_NOT:
+			case Lua.OP_LEN:
+				storeBegin(c, a);
+				loadReg(c, b);
+				c.invokevirtual(VALUE,
+						Lua.GET_OPCODE(i)==Lua.OP_UNM? "neg": Lua.GET_OPCODE(i)==Lua.OP_NOT? "not": "len",
+						D_UNARY);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_CONCAT:
+				storeBegin(c, a);
+				c.aload(L_STACK);
+				c.iconst(b);
+				c.iconst(cc);
+				c.invokestatic(CLOSURE, "concat", "("+D_STACK+"II)"+D_VALUE);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_JMP:
+				if ( sbx < 0 )
+					checkpoint(c);
+				branches[nbranches] = c.branch(JavaBuilder.GOTO);
+				targets[nbranches++] = pc+1+sbx;
+				break;
+
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE:
+				loadRK(c, b);
+				loadRK(c, cc);
+				c.invokevirtual(VALUE, COMPARE[Lua.GET_OPCODE(i)-Lua.OP_EQ], "("+D_VALUE+")Z");
+				branches[nbranches] = c.branch(a!=0? JavaBuilder.IFEQ: JavaBuilder.IFNE);
+				targets[nbranches++] = pc+2;
+				break;
+
+			case Lua.OP_TEST:
+				loadReg(c, a);
+				c.invokevirtual(VALUE, "toboolean", "()Z");
+				branches[nbranches] = c.branch(cc!=0? JavaBuilder.IFEQ: JavaBuilder.IFNE);
+				targets[nbranches++] = pc+2;
+				break;
+
+			case Lua.OP_TESTSET:
+				loadReg(c, b);
+				c.invokevirtual(VALUE, "toboolean", "()Z");
+				branches[nbranches] = c.branch(cc!=0? JavaBuilder.IFEQ: JavaBuilder.IFNE);
+				targets[nbranches++] = pc+2;
+				storeBegin(c, a);
+				loadReg(c, b);
+				c.op(JavaBuilder.AASTORE);
+				break;
+
+			case Lua.OP_CALL:
+				call(c, a, b, cc);
+				break;
+
+			case Lua.OP_TAILCALL:
+				c.anew(TAILCALL);
+				c.op(JavaBuilder.DUP);
+				loadReg(c, a);
+				results(c, a+1, b);
+				c.invokespecial(TAILCALL, "<init>", "("+D_VALUE+D_VARARGS+")V");
+				c.op(JavaBuilder.ARETURN);
+				break;
+
+			case Lua.OP_RETURN:
+				switch ( b ) {
+				case 1:
+					c.getstatic(VALUE, "NONE", D_VALUE);
+					break;
+				case 2:
+					loadReg(c, a);
+					break;
+				default:
+					results(c, a, b);
+					break;
+				}
+				c.op(JavaBuilder.ARETURN);
+				break;
+
+			case Lua.OP_FORLOOP:
+				c.aload(L_STACK);
+				c.iconst(a);
+				c.invokestatic(CLOSURE, "forloop", "("+D_STACK+"I)Z");
+				checkpoint(c);
+				branches[nbranches] = c.branch(JavaBuilder.IFNE);
+				targets[nbranches++] = pc+1+sbx;
+				break;
+
+			case Lua.OP_FORPREP:
+				c.aload(L_STACK);
+				c.iconst(a);
+				c.invokestatic(CLOSURE, "forprep", "("+D_STACK+"I)V");
+				branches[nbranches] = c.branch(JavaBuilder.GOTO);
+				targets[nbranches++] = pc+1+sbx;
+				break;
+
+			case Lua.OP_TFORLOOP:
+				c.aload(L_STACK);
+				c.iconst(a);
+				c.iconst(cc);
+				c.invokestatic(CLOSURE, "tforloop", "("+D_STACK+"II)Z");
+				checkpoint(c);
+				branches[nbranches] = c.branch(JavaBuilder.IFEQ);
+				targets[nbranches++] = pc+2;
+				break;
+
+			case Lua.OP_SETLIST:
+				if ( cc == 0 )
+					offsets[++pc] = c.length(); // next word holds c
+				c.aload(L_STACK);
+				c.iconst(a);
+				c.iconst(b);
+				c.iconst(cc!=0? cc: code[pc]);
+				c.iload(L_TOP);
+				c.aload(L_V);
+				c.invokestatic(CLOSURE, "setlist", "("+D_STACK+"IIII"+D_VARARGS+")V");
+				break;
+
+			case Lua.OP_CLOSE:
+				c.aload(L_OPENUPS);
+				c.iconst(a);
+				c.invokestatic(CLOSURE, "close", "("+D_UPVALUES+"I)V");
+				break;
+
+			case Lua.OP_CLOSURE: {
+				JavaGen child = children[bx];
+				String newclass = child.bytecode!=null? child.classname: LUACLOSURE;
+				c.anew(newclass);
+				c.op(JavaBuilder.DUP);
+				c.aload(L_THIS);
+				c.getfield(LUACLOSURE, "p", D_PROTOTYPE);
+				c.getfield(PROTOTYPE, "p", "["+D_PROTOTYPE);
+				c.iconst(bx);
+				c.op(JavaBuilder.AALOAD);
+				loadEnv(c);
+				c.invokespecial(newclass, "<init>", D_INIT);
+				c.astore(L_NEWCL);
+				for ( int j=0, nup=child.p.nups; j<nup; ++j ) {
+					int u = code[++pc];
+					offsets[pc] = c.length();
+					c.aload(L_NEWCL);
+					c.getfield(LUACLOSURE, "upValues", D_UPVALUES);
+					c.iconst(j);
+					if ( Lua.GET_OPCODE(u) == Lua.OP_GETUPVAL ) {
+						loadUpvalue(c, Lua.GETARG_B(u));
+					} else {
+						c.aload(L_OPENUPS);
+						c.aload(L_STACK);
+						c.iconst(Lua.GETARG_B(u));
+						c.invokestatic(CLOSURE, "upvalue", "("+D_UPVALUES+D_STACK+"I)"+D_UPVALUE);
+					}
+					c.op(JavaBuilder.AASTORE);
+				}
+				storeBegin(c, a);
+				c.aload(L_NEWCL);
+				c.op(JavaBuilder.AASTORE);
+				break;
+			}
+
+			case Lua.OP_VARARG:
+				if ( b == 0 ) {
+					c.aload(L_VARARGS);
+					c.invokevirtual(VARARGS, "narg", "()I");
+					c.iconst(a);
+					c.op(JavaBuilder.IADD);
+					c.istore(L_TOP);
+					c.aload(L_VARARGS);
+					c.astore(L_V);
+				} else {
+					c.aload(L_STACK);
+					c.iconst(a);
+					c.iconst(b);
+					c.aload(L_VARARGS);
+					c.invokestatic(CLOSURE, "vararg", "("+D_STACK+"II"+D_VARARGS+")V");
+				}
+				break;
+
+			default:
+				throw new JavaBuilder.LimitException("unsupported opcode "+Lua.GET_OPCODE(i));
+			}
+		}
+
+		// unreachable for well-formed code which always ends in a return
+		offsets[n] = c.length();
+		c.getstatic(VALUE, "NONE", D_VALUE);
+		c.op(JavaBuilder.ARETURN);
+
+		for ( int j=0; j<nbranches; j++ )
+			c.resolve(branches[j], offsets[targets[j]]);
+		return c;
+	}
+
+	/** R(a), ... ,R(a+c-2) := R(a)(R(a+1), ... ,R(a+b-1)) */
+	private void call(Code c, int a, int b, int cc) {
+		if ( b >= 1 && b <= 4 && (cc == 1 || cc == 2) ) {
+			if ( cc == 2 )
+				storeBegin(c, a);
+			loadReg(c, a);
+			String desc = "(";
+			for ( int j=1; j<b; j++ ) {
+				loadReg(c, a+j);
+				desc += D_VALUE;
+			}
+			c.invokevirtual(VALUE, "call", desc+")"+D_VALUE);
+			c.op(cc == 2? JavaBuilder.AASTORE: JavaBuilder.POP);
+			return;
+		}
+		loadReg(c, a);
+		switch ( b ) {
+		case 1: c.getstatic(VALUE, "NONE", D_VALUE); break;
+		case 2: loadReg(c, a+1); break;
+		default: args(c, a+1, b); break;
+		}
+		c.invokevirtual(VALUE, "invoke", "("+D_VARARGS+")"+D_VARARGS);
+		c.astore(L_V);
+		if ( cc > 0 ) {
+			c.aload(L_STACK);
+			c.iconst(a);
+			c.iconst(cc);
+			c.aload(L_V);
+			c.invokestatic(CLOSURE, "results", "("+D_STACK+"II"+D_VARARGS+")V");
+			c.getstatic(VALUE, "NONE", D_VALUE);
+			c.astore(L_V);
+		} else {
+			c.aload(L_V);
+			c.invokevirtual(VARARGS, "narg", "()I");
+			c.iconst(a);
+			c.op(JavaBuilder.IADD);
+			c.istore(L_TOP);
+		}
+	}
+
+	/** Push varargs R(a), ... ,R(a+b-2), or R(a) up to top when b is 0 */
+	private void args(Code c, int a, int b) {
+		c.aload(L_STACK);
+		c.iconst(a);
+		if ( b > 0 ) {
+			c.iconst(b-1);
+			c.invokestatic(VALUE, "varargsOf", "("+D_STACK+"II)"+D_VARARGS);
+		} else {
+			c.iload(L_TOP);
+			c.aload(L_V);
+			c.invokestatic(CLOSURE, "topargs", "("+D_STACK+"II"+D_VARARGS+")"+D_VARARGS);
+		}
+	}
+
+	/** Push a copy of R(a), ... ,R(a+b-2), or of R(a) up to top when b is 0, for values that outlive the registers */
+	private void results(Code c, int a, int b) {
+		c.aload(L_STACK);
+		c.iconst(a);
+		if ( b > 0 ) {
+			c.iconst(b-1);
+			c.getstatic(VALUE, "NONE", D_VALUE);
+			c.invokestatic(CLOSURE, "frameVarargs", "("+D_STACK+"II"+D_VARARGS+")"+D_VARARGS);
+		} else {
+			c.iload(L_TOP);
+			c.aload(L_V);
+			c.invokestatic(CLOSURE, "topresults", "("+D_STACK+"II"+D_VARARGS+")"+D_VARARGS);
+		}
+	}
+
+	/** Push the stack and register index in preparation for an aastore */
+	private static void storeBegin(Code c, int reg) {
+		c.aload(L_STACK);
+		c.iconst(reg);
+	}
+
+	private static void loadReg(Code c, int reg) {
+		c.aload(L_STACK);
+		c.iconst(reg);
+		c.op(JavaBuilder.AALOAD);
+	}
+
+	private static void loadK(Code c, int index) {
+		c.aload(L_K);
+		c.iconst(index);
+		c.op(JavaBuilder.AALOAD);
+	}
+
+	private static void loadRK(Code c, int rk) {
+		if ( Lua.ISK(rk) )
+			loadK(c, Lua.INDEXK(rk));
+		else
+			loadReg(c, rk);
+	}
+
+	/** Look up the key on the stack in the table below it, using the inline cache entry of the instruction */
+	private static void cachedGet(Code c, int pc) {
+		c.aload(L_IC);
+		c.iconst(pc+1);
+		c.invokevirtual(VALUE, "get", D_CACHEDGET);
+	}
+
+	/** Count a loop iteration for the time slice of the state */
+	private static void checkpoint(Code c) {
+		c.aload(L_STATE);
+		c.invokevirtual(STATE, "checkpoint", "()V");
+	}
+
+	private static void loadEnv(Code c) {
+		c.aload(L_THIS);
+		c.getfield(FUNCTION, "env", D_VALUE);
+	}
+
+	private static void loadUpvalue(Code c, int index) {
+		c.aload(L_THIS);
+		c.getfield(LUACLOSURE, "upValues", D_UPVALUES);
+		c.iconst(index);
+		c.op(JavaBuilder.AALOAD);
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.util.Hashtable;
+
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+/**
+ * Class loader for the classes generated for one lua chunk.
+ * <p>
+ * Each chunk gets its own loader so that the generated classes
+ * can be unloaded once no closures of the chunk remain reachable.
+ *
+ * @see LuaJC
+ * @see JavaGen
+ */
+class JavaLoader extends ClassLoader {
+
+	/** Class bytes by binary class name, removed once defined */
+	private final Hashtable unloaded = new Hashtable();
+
+	JavaLoader() {
+		super( LuaClosure.class.getClassLoader() );
+	}
+
+	/**
+	 * Instantiate the function for a compiled prototype
+	 * @param gen the generator for the main chunk
+	 * @param env the environment for the function
+	 * @return {@link LuaFunction} for the chunk, interpreted if it could not be compiled
+	 */
+	LuaFunction load(JavaGen gen, LuaValue env) {
+		if ( gen.bytecode == null )
+			return new LuaClosure( gen.p, env );
+		include( gen );
+		try {
+			Class c = loadClass( gen.classname.replace('/', '.') );
+			return (LuaFunction) c.getConstructor( new Class[] { Prototype.class, LuaValue.class } )
+					.newInstance( new Object[] { gen.p, env } );
+		} catch ( Exception e ) {
+			throw new LuaError("luajc: failed to load "+gen.classname+": "+e);
+		}
+	}
+
+	private void include(JavaGen gen) {
+		if ( gen.bytecode != null )
+			unloaded.put( gen.classname.replace('/', '.'), gen.bytecode );
+		for ( int i=0; i<gen.children.length; i++ )
+			include( gen.children[i] );
+	}
+
+	protected Class findClass(String classname) throws ClassNotFoundException {
+		byte[] bytes = (byte[]) unloaded.remove(classname);
+		if ( bytes != null )
+			return defineClass(classname, bytes, 0, bytes.length);
+		return super.findClass(classname);
+	}
+}
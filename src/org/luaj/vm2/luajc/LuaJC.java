@@ -0,0 +1,90 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.LoadState.LuaCompiler;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lua2java.Lua2Java;
+
+/**
+ * Implementation of {@link LuaCompiler} which compiles lua functions
+ * directly into java bytecode in memory.
+ * <p>
+ * Source or binary chunks are first turned into a {@link Prototype}
+ * by {@link LuaC}, then one java class is generated per function,
+ * and the classes are defined by a class loader private to the chunk.
+ * No files are written and no java compiler is required.
+ * <p>
+ * Functions that cannot be represented within the limits of a class file,
+ * such as extremely large functions, are left to the interpreter.
+ * <p>
+ * To install the compiler, call {@link #install()} after
+ * the globals have been created, for example:
+ * <pre> {@code
+ * LuaValue _G = JsePlatform.standardGlobals();
+ * LuaJC.install();
+ * LoadState.load( new FileInputStream("main.lua"), "main.lua", _G ).call();
+ * } </pre>
+ *
+ * @see LuaCompiler
+ * @see LuaC
+ * @see CompiledClosure
+ * @see LoadState#compiler
+ */
+public class LuaJC implements LuaCompiler {
+
+	public static final LuaJC instance = new LuaJC();
+
+	/**
+	 * Install the compiler as the default compiler
+	 * used by {@link LoadState}.
+	 */
+	public static final void install() {
+		LoadState.compiler = instance;
+	}
+
+	private LuaJC() {
+	}
+
+	public LuaFunction load(InputStream stream, String name, LuaValue env) throws IOException {
+		return load( LuaC.compile(stream, name), name, env );
+	}
+
+	/**
+	 * Compile a prototype and instantiate it with an environment
+	 * @param p the {@link Prototype} to compile
+	 * @param name the chunk name, used to name the generated classes
+	 * @param env the environment for the function
+	 * @return {@link LuaFunction} implementing the chunk
+	 */
+	public LuaFunction load(Prototype p, String name, LuaValue env) {
+		String classname = "org/luaj/vm2/luajc/gen/"+Lua2Java.toClassname(LoadState.getSourceName(name)).replace('.', '_');
+		return new JavaLoader().load( new JavaGen(p, classname), env );
+	}
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Stress test of {@link ConcurrentLuaTable}: several java threads write 
+ * the same table while others read and traverse it, 
+ * and lua code in several virtual machines inserts into it with {@code table.insert}.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.ConcurrentLuaTableTest [threads [n]]
+ * } </pre>
+ * The exit status is the number of checks that failed.
+ */
+public class ConcurrentLuaTableTest {
+
+	private static int threads = 8;
+	private static int n = 10000;
+	private static int failed = 0;
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length > 0 ) threads = Integer.parseInt(args[0]);
+		if ( args.length > 1 ) n = Integer.parseInt(args[1]);
+		setAndGet();
+		traverse();
+		insert();
+		System.exit(failed);
+	}
+
+	/** Writers set distinct integer and string keys while readers look them up */
+	private static void setAndGet() throws Exception {
+		final LuaTable t = new ConcurrentLuaTable();
+		final Errors errors = new Errors();
+		final boolean[] done = { false };
+		List workers = new ArrayList();
+		for ( int w=0; w<threads; w++ ) {
+			final int first = w*n + 1;
+			workers.add(new Thread() {
+				public void run() {
+					for ( int k=first; k<first+n; k++ ) {
+						t.rawset(k, LuaValue.valueOf(k));
+						t.rawset(LuaValue.valueOf("s"+k), LuaValue.valueOf(k));
+					}
+				}
+			});
+		}
+		List readers = new ArrayList();
+		for ( int r=0; r<threads; r++ ) {
+			final int seed = r;
+			readers.add(new Thread() {
+				public void run() {
+					java.util.Random random = new java.util.Random(seed);
+					while ( !done[0] ) {
+						int k = 1 + random.nextInt(threads*n);
+						LuaValue v = t.rawget(k);
+						if ( !v.isnil() && v.toint() != k )
+							errors.add("rawget("+k+") is "+v);
+						v = t.rawget(LuaValue.valueOf("s"+k));
+						if ( !v.isnil() && v.toint() != k )
+							errors.add("rawget(s"+k+") is "+v);
+					}
+				}
+			});
+		}
+		start(readers);
+		run(workers, errors);
+		done[0] = true;
+		join(readers, errors);
+		int total = threads*n;
+		for ( int k=1; k<=total; k++ ) {
+			if ( t.rawget(k).toint() != k )
+				errors.add("lost "+k);
+			if ( t.rawget(LuaValue.valueOf("s"+k)).toint() != k )
+				errors.add("lost s"+k);
+		}
+		if ( t.length() != total )
+			errors.add("length is "+t.length());
+		if ( t.keyCount() != 2*total )
+			errors.add("key count is "+t.keyCount());
+		check("rawset and rawget", errors);
+	}
+
+	/** Readers traverse the table with next while writers add and replace entries */
+	private static void traverse() throws Exception {
+		final LuaTable t = new ConcurrentLuaTable();
+		final Errors errors = new Errors();
+		List workers = new ArrayList();
+		for ( int w=0; w<threads; w++ ) {
+			final int first = w*n + 1;
+			workers.add(new Thread() {
+				public void run() {
+					for ( int k=first; k<first+n; k++ ) {
+						t.rawset(LuaValue.valueOf("k"+k), LuaValue.valueOf(k));
+						t.rawset(LuaValue.valueOf("k"+(first+(k*7)%n)), LuaValue.valueOf(first+(k*7)%n));
+					}
+				}
+			});
+			workers.add(new Thread() {
+				public void run() {
+					for ( int i=0; i<20; i++ ) {
+						LuaValue k = LuaValue.NIL;
+						while ( true ) {
+							Varargs e = t.next(k);
+							if ( (k = e.arg1()).isnil() )
+								break;
+							if ( !k.tojstring().equals("k"+e.arg(2).toint()) )
+								errors.add("next gave "+k+" = "+e.arg(2));
+						}
+					}
+				}
+			});
+		}
+		run(workers, errors);
+		if ( t.keyCount() != threads*n )
+			errors.add("key count is "+t.keyCount());
+		check("next while writing", errors);
+	}
+
+	/** Lua code in one virtual machine per thread calls table.insert on a shared table */
+	private static void insert() throws Exception {
+		final LuaTable t = new ConcurrentLuaTable();
+		final Errors errors = new Errors();
+		List workers = new ArrayList();
+		for ( int w=0; w<threads; w++ ) {
+			workers.add(new Thread() {
+				public void run() {
+					LuaState vm = new LuaState();
+					vm.enter();
+					LuaValue _G = JsePlatform.standardGlobals();
+					_G.set("t", t);
+					_G.get("loadstring").call(LuaValue.valueOf(
+							"for i=1,"+n+" do table.insert(t, i) end\n" +
+							"for i=1,100 do table.insert(t, 1, -i) table.remove(t, 1) end")).call();
+				}
+			});
+		}
+		run(workers, errors);
+		int total = threads*n;
+		if ( t.length() != total )
+			errors.add("length is "+t.length());
+		long sum = 0;
+		for ( int i=1; i<=total; i++ )
+			sum += t.rawget(i).tolong();
+		if ( sum != (long) threads*n*(n+1)/2 )
+			errors.add("sum is "+sum);
+		check("table.insert and table.remove", errors);
+	}
+
+	private static void start(List threads) {
+		for ( int i=0; i<threads.size(); i++ )
+			((Thread) threads.get(i)).start();
+	}
+
+	private static void join(List threads, final Errors errors) throws InterruptedException {
+		for ( int i=0; i<threads.size(); i++ )
+			((Thread) threads.get(i)).join();
+	}
+
+	/** Start and wait for threads, recording any exception they throw */
+	private static void run(List threads, final Errors errors) throws InterruptedException {
+		for ( int i=0; i<threads.size(); i++ )
+			((Thread) threads.get(i)).setUncaughtExceptionHandler(errors);
+		start(threads);
+		join(threads, errors);
+	}
+
+	private static void check(String name, Errors errors) {
+		System.out.println((errors.isEmpty()? "pass ": "FAIL ")+name+errors);
+		if ( !errors.isEmpty() ) ++failed;
+	}
+
+	/** The first few errors seen by any thread */
+	private static final class Errors implements Thread.UncaughtExceptionHandler {
+		private final List list = new ArrayList();
+		private int count;
+		synchronized void add(String s) {
+			if ( count++ < 5 ) list.add(s);
+		}
+		synchronized boolean isEmpty() {
+			return count == 0;
+		}
+		public void uncaughtException(Thread t, Throwable e) {
+			add(t.getName()+": "+e);
+		}
+		public synchronized String toString() {
+			return count==0? "": ": "+count+" errors, "+list;
+		}
+	}
+}
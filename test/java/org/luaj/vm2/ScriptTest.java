@@ -0,0 +1,63 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.LuaJC;
+
+/**
+ * Runs lua test scripts, each in a fresh {@link LuaState}, 
+ * once with the interpreter and once compiled by {@link LuaJC}.
+ * <p>
+ * A script checks its own results with {@code assert}, 
+ * so it passes if it runs to the end without an error.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.ScriptTest test/lua/*.lua
+ * } </pre>
+ * The exit status is the number of runs that failed.
+ */
+public class ScriptTest {
+
+	public static void main(String[] args) {
+		int failed = 0;
+		for ( int i=0; i<args.length; i++ ) {
+			for ( int jc=0; jc<2; jc++ ) {
+				String mode = jc>0? "luajc": "interpreted";
+				LuaState vm = new LuaState();
+				LuaState prior = vm.enter();
+				try {
+					LuaValue _G = JsePlatform.standardGlobals();
+					if ( jc>0 ) LuaJC.install(); else LuaC.install();
+					_G.get("dofile").call(LuaValue.valueOf(args[i]));
+					System.out.println("pass "+args[i]+" ("+mode+")");
+				} catch ( LuaError e ) {
+					++failed;
+					System.out.println("FAIL "+args[i]+" ("+mode+"): "+e.getMessage());
+				} finally {
+					prior.enter();
+				}
+			}
+		}
+		System.exit(failed);
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.LuaJC;
+
+/**
+ * Checks that code in an endless loop is paused or stopped at the end of its time slice,
+ * interpreted and compiled by {@link LuaJC}, including code that catches errors 
+ * with {@code pcall} and {@code xpcall} or runs in a coroutine of its own.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.TimeSliceTest
+ * } </pre>
+ * The exit status is the number of checks that failed.
+ */
+public class TimeSliceTest {
+
+	private static final long SLICE = 5000000;
+
+	private static final String[] STOPPED = {
+		"while true do end",
+		"local function f() return f() end f()",
+		"while true do pcall(function() while true do end end) end",
+		"while true do xpcall(function() while true do end end, function(m) return m end) end",
+		"while true do local ok, e = pcall(error, 'x') end",
+		"while true do coroutine.resume(coroutine.create(function() while true do end end)) end",
+	};
+
+	private static int failed = 0;
+
+	public static void main(String[] args) {
+		for ( int jc=0; jc<2; jc++ ) {
+			LuaState vm = new LuaState();
+			LuaState prior = vm.enter();
+			try {
+				LuaValue _G = JsePlatform.standardGlobals();
+				if ( jc>0 ) LuaJC.install(); else LuaC.install();
+				String mode = jc>0? " (luajc)": " (interpreted)";
+				for ( int i=0; i<STOPPED.length; i++ )
+					stopped(vm, _G, STOPPED[i], mode);
+				paused(vm, _G, mode);
+			} finally {
+				prior.enter();
+			}
+		}
+		System.exit(failed);
+	}
+
+	/** Code run on the main thread must be stopped by an error soon after its slice is over */
+	private static void stopped(LuaState vm, LuaValue _G, String script, String mode) {
+		LuaValue f = _G.get("loadstring").call(LuaValue.valueOf(script));
+		vm.beginSlice(null, SLICE);
+		long used;
+		String error = null;
+		try {
+			f.call();
+		} catch ( LuaState.TimeSliceError e ) {
+			error = e.getMessage();
+		} finally {
+			used = vm.endSlice();
+		}
+		check(error != null && used < 50*SLICE, "stopped: "+script+mode);
+	}
+
+	/** A coroutine must yield at the end of each slice, and continue where it was when resumed */
+	private static void paused(LuaState vm, LuaValue _G, String mode) {
+		LuaValue f = _G.get("loadstring").call(LuaValue.valueOf(
+				"n=0 while true do pcall(function() for i=1,1000 do n=n+1 end end) end"));
+		LuaThread t = new LuaThread(f, _G);
+		int n = 0;
+		boolean ok = true;
+		for ( int i=0; i<5; i++ ) {
+			vm.beginSlice(t, SLICE);
+			Varargs r;
+			try {
+				r = t.resume(LuaValue.NONE);
+			} finally {
+				vm.endSlice();
+			}
+			int m = _G.get("n").toint();
+			ok = ok && r.arg1().toboolean() && t.getStatus().equals("suspended") && m > n;
+			n = m;
+		}
+		check(ok, "paused"+mode);
+	}
+
+	private static void check(boolean ok, String name) {
+		System.out.println((ok? "pass ": "FAIL ")+name);
+		if ( !ok ) ++failed;
+	}
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Checks that {@link AsyncIoLib} parks a coroutine run in time slices until its io is done, 
+ * the way a scheduler resuming scripts on every tick runs them, 
+ * and that it raises an error anywhere else rather than yielding to a generator or blocking.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.lib.jse.AsyncIoTest
+ * } </pre>
+ * The exit status is the number of checks that failed.
+ */
+public class AsyncIoTest {
+
+	private static final long SLICE = 5000000;
+
+	/** writes, appends and reads a file named by the argument, returning what it read */
+	private static final String SCRIPT = 
+		"local name = ... " +
+		"assert(aio.write(name, 'a\\r\\n', 'b\\n', 12)) " +
+		"assert(aio.append(name, '\\nlast')) " +
+		"local lines = {} " +
+		"for l in aio.lines(name) do lines[#lines+1] = l end " +
+		"assert(aio.read(name..'.missing') == nil) " +
+		"return aio.read(name), table.concat(lines, '|') ";
+
+	/** calls aio from a coroutine of its own, which is not the one in the time slice */
+	private static final String NESTED = 
+		"local name = ... " +
+		"local gen = coroutine.wrap(function() coroutine.yield(aio.read(name)) end) " +
+		"return pcall(gen) ";
+
+	private static int failed = 0;
+
+	public static void main(String[] args) throws Exception {
+		LuaState vm = new LuaState();
+		LuaState prior = vm.enter();
+		File file = File.createTempFile("luaj", "aio");
+		try {
+			LuaValue _G = JsePlatform.standardGlobals();
+			_G.load(new AsyncIoLib());
+			LuaValue name = LuaValue.valueOf(file.getPath());
+
+			Varargs r = schedule(vm, _G, SCRIPT, name);
+			check(r.arg1().toboolean() && r.arg(2).tojstring().equals("a\r\nb\n12\nlast") && 
+					r.arg(3).tojstring().equals("a|b|12|last"), "parked until done");
+
+			r = schedule(vm, _G, NESTED, name);
+			check(r.arg1().toboolean() && !r.arg(2).toboolean() && r.arg(3).tojstring().indexOf("time slices") >= 0, 
+					"error in a nested coroutine");
+
+			r = _G.get("pcall").invoke(LuaValue.varargsOf(_G.get("aio").get("read"), name));
+			check(!r.arg1().toboolean(), "error on the main thread");
+		} finally {
+			file.delete();
+			prior.enter();
+		}
+		System.exit(failed);
+	}
+
+	/** Run a chunk as a scheduler would, resuming it in slices while not waiting for io, and return what it returned */
+	private static Varargs schedule(LuaState vm, LuaValue _G, String script, LuaValue arg) throws InterruptedException {
+		LuaValue f = _G.get("loadstring").call(LuaValue.valueOf(script));
+		LuaThread t = new LuaThread(f, _G);
+		Varargs r = arg;
+		Future waiting = null;
+		while ( ! t.getStatus().equals("dead") ) {
+			if ( waiting != null && ! waiting.isDone() ) {
+				Thread.sleep(1);
+				continue;
+			}
+			vm.beginSlice(t, SLICE);
+			try {
+				r = t.resume(r);
+			} finally {
+				vm.endSlice();
+			}
+			if ( ! r.arg1().toboolean() )
+				return r;
+			Object yielded = r.arg(2).touserdata();
+			waiting = yielded instanceof Future? (Future) yielded: null;
+			if ( ! t.getStatus().equals("dead") ) {
+				if ( waiting == null && r.narg() > 1 )
+					return LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf("yielded "+r));
+				r = LuaValue.NONE;
+			}
+		}
+		return r;
+	}
+
+	private static void check(boolean ok, String name) {
+		System.out.println((ok? "pass ": "FAIL ")+name);
+		if ( !ok ) ++failed;
+	}
+}
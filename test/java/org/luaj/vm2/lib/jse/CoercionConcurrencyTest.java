@@ -0,0 +1,136 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Stress test of the coercion registries in {@link CoerceJavaToLua}, {@link CoerceLuaToJava}, 
+ * {@link JavaClass}, {@link JavaMethod} and {@link JavaConstructor}. 
+ * <p>
+ * Several threads, each with its own {@link LuaState}, use each class below 
+ * for the first time at the same moment, then keep calling into it.
+ * Every thread must get the same {@link JavaClass}, and every call the expected result.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.lib.jse.CoercionConcurrencyTest [threads]
+ * } </pre>
+ * The exit status is the number of checks that failed.
+ */
+public class CoercionConcurrencyTest {
+
+	/** class name, lua chunk using the class as {@code c}, and its expected result */
+	private static final String[][] CASES = {
+		{ "java.lang.Math", "return c:max(3, 4)", "4" },
+		{ "java.lang.Integer", "return c:parseInt('42') + c.MAX_VALUE * 0", "42" },
+		{ "java.lang.String", "return c:valueOf(true)", "true" },
+		{ "java.lang.Long", "return c:toHexString(255)", "ff" },
+		{ "java.lang.Double", "return c:parseDouble('1.5')", "1.5" },
+		{ "java.lang.Boolean", "return c:parseBoolean('true')", "true" },
+		{ "java.lang.Short", "return c.MAX_VALUE", "32767" },
+		{ "java.lang.StringBuilder", "return luajava.new(c, 'a'):append(1):append('b'):toString()", "a1b" },
+		{ "java.util.ArrayList", "local l = luajava.new(c) l:add('x') l:add('y') return l:size()..l:get(1)", "2y" },
+		{ "java.util.HashMap", "local m = luajava.new(c) m:put('k', 5) return m:get('k')", "5" },
+		{ "java.util.TreeMap", "local m = luajava.new(c) m:put('b', 1) m:put('a', 2) return m:firstKey()", "a" },
+		{ "java.util.ArrayDeque", "local d = luajava.new(c) d:push(1) d:push(2) return d:peek()", "2" },
+		{ "java.util.BitSet", "local b = luajava.new(c) b:set(3) b:set(9) return b:cardinality()", "2" },
+		{ "java.util.Random", "return luajava.new(c, 7):nextInt(1000)", String.valueOf(new java.util.Random(7).nextInt(1000)) },
+	};
+
+	/** lua values and the classes they are coerced to, with the expected java value */
+	private static final Object[][] TO_JAVA = {
+		{ LuaValue.valueOf(3), Integer.TYPE, Integer.valueOf(3) },
+		{ LuaValue.valueOf(3), Long.class, Long.valueOf(3) },
+		{ LuaValue.valueOf(2.5), Double.TYPE, Double.valueOf(2.5) },
+		{ LuaValue.valueOf(7), Byte.TYPE, Byte.valueOf((byte) 7) },
+		{ LuaValue.valueOf("s"), String.class, "s" },
+		{ LuaValue.valueOf(true), Boolean.class, Boolean.TRUE },
+	};
+
+	private static final int CALLS = 200;
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0? Integer.parseInt(args[0]): 8;
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final Object[][] seen = new Object[threads][CASES.length];
+		final List errors = new ArrayList();
+		Thread[] workers = new Thread[threads];
+		for ( int w=0; w<threads; w++ ) {
+			final int index = w;
+			workers[w] = new Thread() {
+				public void run() {
+					LuaState vm = new LuaState();
+					vm.enter();
+					LuaValue _G = JsePlatform.standardGlobals();
+					try {
+						for ( int i=0; i<CASES.length; i++ ) {
+							String[] c = CASES[i];
+							LuaValue chunk = _G.get("loadstring").call(LuaValue.valueOf(
+									"local c = luajava.bindClass('"+c[0]+"') "+c[1]));
+							barrier.await();
+							seen[index][i] = CoerceJavaToLua.coerce(Class.forName(c[0]));
+							for ( int n=0; n<CALLS; n++ ) {
+								String result = chunk.call().tojstring();
+								if ( !result.equals(c[2]) )
+									error(errors, c[0]+": "+result+" instead of "+c[2]);
+							}
+						}
+						barrier.await();
+						for ( int n=0; n<CALLS; n++ ) {
+							for ( int i=0; i<TO_JAVA.length; i++ ) {
+								Object[] c = TO_JAVA[i];
+								Object result = CoerceLuaToJava.coerce((LuaValue) c[0], (Class) c[1]);
+								if ( !c[2].equals(result) )
+									error(errors, c[0]+" as "+c[1]+": "+result);
+							}
+						}
+					} catch ( Exception e ) {
+						error(errors, e.toString());
+					}
+				}
+			};
+			workers[w].start();
+		}
+		for ( int w=0; w<threads; w++ )
+			workers[w].join();
+		for ( int i=0; i<CASES.length; i++ ) {
+			for ( int w=1; w<threads; w++ )
+				if ( seen[w][i] != seen[0][i] )
+					error(errors, "two JavaClass instances for "+CASES[i][0]);
+			if ( seen[0][i] != JavaClass.forClass(Class.forName(CASES[i][0])) )
+				error(errors, "JavaClass for "+CASES[i][0]+" not cached");
+		}
+		System.out.println((errors.isEmpty()? "pass": "FAIL "+errors.size()+" errors "+errors)+
+				" coercion from "+threads+" threads");
+		System.exit(errors.isEmpty()? 0: 1);
+	}
+
+	private static void error(List errors, String s) {
+		synchronized ( errors ) {
+			if ( errors.size() < 10 ) errors.add(s);
+		}
+	}
+}
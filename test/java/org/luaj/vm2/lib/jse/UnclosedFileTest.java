@@ -0,0 +1,124 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Test that bytes written to a file lua never closes reach the file, 
+ * both through {@link JseIoLib#closeAll()} and when the virtual machine exits. 
+ * <p>
+ * The exit case runs this class again in a child virtual machine with the name of the file to write.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.lib.jse.UnclosedFileTest
+ * } </pre>
+ * The exit status is the number of checks that failed.
+ */
+public class UnclosedFileTest {
+
+	/** writes to a file named by the argument, through io.output and through a file handle, and closes neither */
+	private static final String SCRIPT = 
+		"local name = ... " +
+		"io.output(name..'.1') io.write('default ', 1, '\\n') " +
+		"local f = io.open(name..'.2', 'w') f:write('handle ', 2, '\\n') " +
+		"local a = io.open(name..'.3', 'a') a:setvbuf('full', 64) a:write(string.rep('x', 100)) ";
+
+	private static final String[] EXPECTED = { "default 1\n", "handle 2\n", repeat('x', 100) };
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length > 0 ) {
+			write(args[0]);
+			return;
+		}
+		List errors = new ArrayList();
+		File dir = createTempDir();
+		try {
+			String name = new File(dir, "closeall").getPath();
+			write(name);
+			JseIoLib.closeAll();
+			check(errors, "closeAll", name);
+
+			name = new File(dir, "exit").getPath();
+			Process p = new ProcessBuilder(new String[] {
+					System.getProperty("java.home")+File.separator+"bin"+File.separator+"java",
+					"-cp", System.getProperty("java.class.path"),
+					UnclosedFileTest.class.getName(), name }).inheritIO().start();
+			if ( p.waitFor() != 0 )
+				errors.add("child exited with "+p.exitValue());
+			check(errors, "exit", name);
+		} finally {
+			File[] files = dir.listFiles();
+			for ( int i=0; i<files.length; i++ )
+				files[i].delete();
+			dir.delete();
+		}
+		System.out.println((errors.isEmpty()? "pass": "FAIL "+errors.size()+" errors "+errors)+
+				" unclosed files");
+		System.exit(errors.size());
+	}
+
+	private static void write(String name) {
+		LuaValue _G = JsePlatform.standardGlobals();
+		_G.get("loadstring").call(LuaValue.valueOf(SCRIPT)).call(LuaValue.valueOf(name));
+	}
+
+	private static void check(List errors, String how, String name) throws IOException {
+		for ( int i=0; i<EXPECTED.length; i++ ) {
+			String s = read(new File(name+"."+(i+1)));
+			if ( !EXPECTED[i].equals(s) )
+				errors.add(how+": file "+(i+1)+" has '"+s+"' instead of '"+EXPECTED[i]+"'");
+		}
+	}
+
+	private static String read(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] b = new byte[(int) f.length()];
+			int n = 0;
+			while ( n < b.length )
+				n += in.read(b, n, b.length-n);
+			return new String(b, "ISO-8859-1");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File createTempDir() throws IOException {
+		File f = File.createTempFile("luaj", "io");
+		f.delete();
+		f.mkdir();
+		return f;
+	}
+
+	private static String repeat(char c, int n) {
+		StringBuffer sb = new StringBuffer();
+		for ( int i=0; i<n; i++ )
+			sb.append(c);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Measures coroutines in each of the modes selectable by {@link LuaThread#setCoroutineMode(int)}:
+ * the time of a resume/yield round trip, of creating and finishing a coroutine, 
+ * and of keeping many coroutines suspended at once as timers and NPC behaviours do.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.perf.CoroutineBenchmark [rounds]
+ * } </pre>
+ * Each measurement is repeated, and the best of the rounds after the first is reported.
+ */
+public class CoroutineBenchmark {
+
+	private static final String[] NAMES = { "platform", "pooled", "virtual" };
+
+	private static final String SCRIPT =
+		"local yield, wrap, create, resume = coroutine.yield, coroutine.wrap, coroutine.create, coroutine.resume\n" +
+		"local function roundtrips(n)\n" +
+		"	local co = wrap(function() for i=1,n do yield() end end)\n" +
+		"	for i=1,n+1 do co() end\n" +
+		"end\n" +
+		"local function lifetimes(n)\n" +
+		"	for i=1,n do wrap(function() end)() end\n" +
+		"end\n" +
+		"local function suspended(n)\n" +
+		"	local t = {}\n" +
+		"	for i=1,n do t[i] = create(function() yield() end) resume(t[i]) end\n" +
+		"	for i=1,n do resume(t[i]) end\n" +
+		"end\n" +
+		"return roundtrips, lifetimes, suspended\n";
+
+	public static void main(String[] args) {
+		int rounds = args.length>0? Integer.parseInt(args[0]): 5;
+		System.out.println("mode       roundtrip(us)  create+finish(us)  3000 suspended(ms)");
+		for ( int mode=0; mode<NAMES.length; mode++ ) {
+			LuaState vm = new LuaState();
+			LuaState prior = vm.enter();
+			try {
+				LuaValue _G = JsePlatform.standardGlobals(mode);
+				LuaValue f = _G.get("loadstring").call(LuaValue.valueOf(SCRIPT));
+				Varargs fs = f.invoke();
+				double roundtrip = best(fs.arg(1), 20000, rounds) / 1000.;
+				double lifetime = best(fs.arg(2), 2000, rounds) / 1000.;
+				double suspended = best(fs.arg(3), 3000, rounds) * 3000 / 1000000.;
+				System.out.println(pad(NAMES[mode], 11)+pad(format(roundtrip), 15)+pad(format(lifetime), 19)+format(suspended));
+			} finally {
+				prior.enter();
+			}
+		}
+	}
+
+	/** Best time in nanoseconds per iteration over the rounds after the first */
+	private static double best(LuaValue f, int n, int rounds) {
+		double best = Double.MAX_VALUE;
+		for ( int r=0; r<=rounds; r++ ) {
+			long t = System.nanoTime();
+			f.call(LuaValue.valueOf(n));
+			double per = (System.nanoTime() - t) / (double) n;
+			if ( r > 0 && per < best )
+				best = per;
+		}
+		return best;
+	}
+
+	private static String format(double d) {
+		return String.valueOf(Math.round(d*10)/10.);
+	}
+
+	private static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while ( sb.length() < n )
+			sb.append(' ');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Timing and allocation measurement shared by the benchmarks in this package.
+ * <p>
+ * Each workload is a lua function taking an iteration count. 
+ * It is called for a number of rounds to warm up, so the JIT has compiled the interpreter,
+ * and then for the same number of rounds again,
+ * and the best time and allocation per iteration of those later rounds are reported. 
+ * Allocation is read from the JVM's per-thread counter where the JVM has one,
+ * and reported as -1 otherwise.
+ */
+class Measure {
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/** Load a chunk into new standard globals and return the values it returns */
+	static LuaValue[] load(String script, int count) {
+		LuaValue _G = JsePlatform.standardGlobals();
+		LuaValue f = _G.get("loadstring").call(LuaValue.valueOf(script));
+		if ( f.isnil() )
+			throw new IllegalArgumentException(_G.get("loadstring").invoke(LuaValue.valueOf(script)).arg(2).tojstring());
+		LuaValue[] fs = new LuaValue[count];
+		for ( int i=0; i<count; i++ )
+			fs[i] = f.invoke().arg(i+1);
+		return fs;
+	}
+
+	/** Best nanoseconds and bytes allocated per iteration of f(n) over the rounds after the warmup */
+	static double[] best(LuaValue f, int n, int rounds) {
+		double time = Double.MAX_VALUE, bytes = Double.MAX_VALUE;
+		for ( int r=0; r<2*rounds; r++ ) {
+			long a = allocated();
+			long t = System.nanoTime();
+			f.call(LuaValue.valueOf(n));
+			double per = (System.nanoTime() - t) / (double) n;
+			double alloc = a < 0? -1: (allocated() - a) / (double) n;
+			if ( r >= rounds ) {
+				time = Math.min(time, per);
+				bytes = Math.min(bytes, alloc);
+			}
+		}
+		return new double[] { time, bytes };
+	}
+
+	private static long allocated() {
+		if ( threads instanceof com.sun.management.ThreadMXBean )
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/** Print one line of results, a label followed by time and allocation per iteration */
+	static void print(String label, double[] result) {
+		System.out.println(pad(label, 24)+pad(format(result[0]), 16)+format(result[1]));
+	}
+
+	static void header(String unit) {
+		System.out.println(pad("workload", 24)+pad("ns/"+unit, 16)+"bytes/"+unit);
+	}
+
+	static int rounds(String[] args) {
+		return args.length>0? Integer.parseInt(args[0]): 10;
+	}
+
+	private static String format(double d) {
+		return String.valueOf(Math.round(d*10)/10.);
+	}
+
+	private static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while ( sb.length() < n )
+			sb.append(' ');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Measures integer arithmetic in numeric loops like those over block coordinates, 
+ * where results soon leave the range of cached {@link org.luaj.vm2.LuaInteger} values.
+ * <pre> {@code
+ * java -cp bin:test/bin [-Dluaj.intcache=n] org.luaj.vm2.perf.NumberBenchmark [rounds]
+ * } </pre>
+ * Times and allocations are per loop iteration.
+ */
+public class NumberBenchmark {
+
+	private static final String SCRIPT =
+		"local function small(n)\n" +
+		"	local s = 0\n" +
+		"	for j=1,n/100 do for i=1,100 do s = (s + i) % 200 end end\n" +
+		"	return s\n" +
+		"end\n" +
+		"local function coordinates(n)\n" +
+		"	local s, w = 0, 64\n" +
+		"	for i=1,n/(w*w) do\n" +
+		"		for x=-w/2,w/2-1 do for z=-w/2,w/2-1 do s = (s + x*16 + z) % 4096 end end\n" +
+		"	end\n" +
+		"	return s\n" +
+		"end\n" +
+		"local function ids(n)\n" +
+		"	local s = 0\n" +
+		"	for j=1,n/1000 do for i=1,1000 do local id = 4000 + i s = (s + id) % 5000 end end\n" +
+		"	return s\n" +
+		"end\n" +
+		"local function counters(n)\n" +
+		"	local tick = 0\n" +
+		"	for i=1,n do tick = tick + 1 end\n" +
+		"	return tick\n" +
+		"end\n" +
+		"return small, coordinates, ids, counters\n";
+
+	private static final String[] NAMES = { "values below 200", "block coordinates", "entity ids", "tick counter" };
+
+	public static void main(String[] args) {
+		int rounds = Measure.rounds(args);
+		LuaValue[] fs = Measure.load(SCRIPT, NAMES.length);
+		System.out.println("luaj.intcache="+System.getProperty("luaj.intcache", "default"));
+		Measure.header("iteration");
+		for ( int i=0; i<fs.length; i++ )
+			Measure.print(NAMES[i], Measure.best(fs[i], 1<<20, rounds));
+	}
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Measures the hash part of {@link org.luaj.vm2.LuaTable} from lua: 
+ * building tables keyed by strings and by sparse integers, 
+ * looking keys up in a large table, and clearing and refilling entries.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.perf.TableBenchmark [rounds]
+ * } </pre>
+ * Times are per key inserted or looked up.
+ */
+public class TableBenchmark {
+
+	private static final String SCRIPT =
+		"local names = {}\n" +
+		"for i=1,100000 do names[i] = 'key'..i end\n" +
+		"local function strings(n)\n" +
+		"	local t = {}\n" +
+		"	for i=1,n do t[names[i]] = i end\n" +
+		"end\n" +
+		"local function sparse(n)\n" +
+		"	local t = {}\n" +
+		"	for i=1,n do t[i*7919] = i end\n" +
+		"end\n" +
+		"local big = {}\n" +
+		"for i=1,#names do big[names[i]] = i end\n" +
+		"local function lookups(n)\n" +
+		"	local s = 0\n" +
+		"	for j=1,n/#names do\n" +
+		"		for i=1,#names do s = s + big[names[i]] end\n" +
+		"	end\n" +
+		"	return s\n" +
+		"end\n" +
+		"local function churn(n)\n" +
+		"	local t = {}\n" +
+		"	for i=1,1000 do t[names[i]] = i end\n" +
+		"	for i=1,n do local k = names[i%1000+1] t[k] = nil t[k] = i end\n" +
+		"end\n" +
+		"return strings, sparse, lookups, churn\n";
+
+	private static final String[] NAMES = { "insert string keys", "insert sparse ints", "lookup string keys", "remove and reinsert" };
+
+	public static void main(String[] args) {
+		int rounds = Measure.rounds(args);
+		LuaValue[] fs = Measure.load(SCRIPT, NAMES.length);
+		Measure.header("key");
+		for ( int i=0; i<fs.length; i++ )
+			Measure.print(NAMES[i], Measure.best(fs[i], 100000, rounds));
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Measures the {@link org.luaj.vm2.Varargs} made by calls and returns in code 
+ * shaped like an event handler: several arguments in, several results out, 
+ * varargs passed through a wrapper, {@code select}, and calls to java methods.
+ * <pre> {@code
+ * java -cp bin:test/bin org.luaj.vm2.perf.VarargsBenchmark [rounds]
+ * } </pre>
+ * Times and allocations are per call.
+ */
+public class VarargsBenchmark {
+
+	private static final String SCRIPT =
+		"local select = select\n" +
+		"local function handler(event, x, y, z) return x+1, y+1, z+1 end\n" +
+		"local function results(n)\n" +
+		"	local a, b, c = 0, 0, 0\n" +
+		"	for i=1,n do a, b, c = handler('move', a, b, c) end\n" +
+		"	return a\n" +
+		"end\n" +
+		"local function wrap(f) return function(...) return f(...) end end\n" +
+		"local wrapped = wrap(handler)\n" +
+		"local function passthrough(n)\n" +
+		"	local a, b, c = 0, 0, 0\n" +
+		"	for i=1,n do a, b, c = wrapped('move', a, b, c) end\n" +
+		"	return a\n" +
+		"end\n" +
+		"local function count(...) return select('#', ...) + select(2, ...) end\n" +
+		"local function selects(n)\n" +
+		"	local s = 0\n" +
+		"	for i=1,n do s = s + count('move', 1, 2, 3) end\n" +
+		"	return s\n" +
+		"end\n" +
+		"local math = luajava.bindClass('java.lang.Math')\n" +
+		"local function javacalls(n)\n" +
+		"	local s = 0\n" +
+		"	for i=1,n do s = s + math:max(i, 3) end\n" +
+		"	return s\n" +
+		"end\n" +
+		"local function first(...) return ... end\n" +
+		"local function prefixed(event, ...) return event, first(...) end\n" +
+		"local function prefix(n)\n" +
+		"	local s = 0\n" +
+		"	for i=1,n do local e, a, b = prefixed(i, 1, 2, 3) s = s + e + a + b end\n" +
+		"	return s\n" +
+		"end\n" +
+		"return results, passthrough, selects, javacalls, prefix\n";
+
+	private static final String[] NAMES = { "three results", "vararg wrapper", "select", "java method", "value and varargs" };
+
+	public static void main(String[] args) {
+		int rounds = Measure.rounds(args);
+		LuaValue[] fs = Measure.load(SCRIPT, NAMES.length);
+		Measure.header("call");
+		for ( int i=0; i<fs.length; i++ )
+			Measure.print(NAMES[i], Measure.best(fs[i], 100000, rounds));
+	}
+}
@@ -0,0 +1,68 @@
+-- values returned through reused register arrays must not change 
+-- once the function they came from has returned
+
+local function id(...) return ... end
+local function pass(...) return id(...) end
+local function check(name, n, ...)
+	assert(select('#', ...) == n, name..": expected "..n.." values, got "..select('#', ...))
+	for i=1,n do
+		local v = select(i, ...)
+		assert(v == i, name..": value "..i.." is "..tostring(v))
+	end
+end
+
+-- returning the results of a call that returns its arguments
+local function r1(a,b,c,d) return 1, id(a,b,c,d) end
+local function r2(a,b,c,d,e) return 1, 2, id(a,b,c,d,e) end
+local function r3(...) return 1, id(...) end
+local function r4(a,b,c,d) return id(a,b,c,d) end
+local function r5(a,b,c,d) return 1, select(1, a,b,c,d) end
+local function r6(a,b,c,d) local x = 1 return x, pass(a,b,c,d) end
+check("return x, id(a,b,c,d)", 5, r1(2,3,4,5))
+check("return x, y, id(a,b,c,d,e)", 7, r2(3,4,5,6,7))
+check("return x, id(...)", 5, r3(2,3,4,5))
+check("return id(a,b,c,d)", 4, r4(1,2,3,4))
+check("return x, select(1, ...)", 5, r5(2,3,4,5))
+check("return x, pass(...)", 5, r6(2,3,4,5))
+
+-- a call at the same depth in between must not overwrite the values
+local function deep(...) local a,b,c,d,e,f,g,h = 9,9,9,9,9,9,9,9 return a end
+local function later(f, ...)
+	local t = { pcall(f, ...) }
+	deep(9,9,9,9,9,9,9,9)
+	return unpack(t, 2)
+end
+check("pcall then call", 5, later(r1, 2,3,4,5))
+
+-- table constructors
+local function t1(a,b,c,d) return { id(a,b,c,d) } end
+local function t2(a,b,c,d) return { 1, id(a,b,c,d) } end
+local function t3(...) local t = { 1, id(...) } return t end
+check("{ id(a,b,c,d) }", 4, unpack(t1(1,2,3,4)))
+check("{ x, id(a,b,c,d) }", 5, unpack(t2(2,3,4,5)))
+check("{ x, id(...) }", 5, unpack(t3(2,3,4,5)))
+
+-- tail calls
+local function tc1(a,b,c,d) return id(1, id(a,b,c,d)) end
+local function tc2(...) return id(1, ...) end
+local function tc3(a,b,c,d) return pass(1, select(1, a,b,c,d)) end
+local function tc4(n, ...) if n > 0 then return tc4(n-1, ...) end return 1, ... end
+check("return id(x, id(a,b,c,d))", 5, tc1(2,3,4,5))
+check("return id(x, ...)", 5, tc2(2,3,4,5))
+check("return pass(x, select(1, ...))", 5, tc3(2,3,4,5))
+check("recursive tail call", 5, tc4(10, 2,3,4,5))
+
+-- coroutines keep their arguments and yielded values across resumes
+local co = coroutine.wrap(function(...)
+	local a,b,c,d = coroutine.yield()
+	deep(9,9,9,9,9,9,9,9)
+	check("resume arguments", 4, ...)
+	coroutine.yield(1, id(a,b,c,d))
+	return 1, id(a,b,c,d)
+end)
+local function start(a,b,c,d) local n = select('#', co(a,b,c,d)) return n end
+local function resume(a,b,c,d) local t = { co(a,b,c,d) } return unpack(t) end
+start(1,2,3,4)
+deep(9,9,9,9,9,9,9,9)
+check("yield results", 5, resume(2,3,4,5))
+check("return after resume", 5, co())
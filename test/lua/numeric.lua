@@ -0,0 +1,42 @@
+-- a key moving from the hash part into the numeric array part 
+-- must leave no stale entry behind
+
+local t = table.numeric(4)
+t[1] = 1
+t[3] = "s"
+t[2] = 2
+t[3] = 7
+assert(t[3] == 7 and #t == 3, "key 3 moved into the array part")
+
+local count, seen = 0, {}
+for k, v in pairs(t) do
+	count = count + 1
+	assert(count <= 3, "pairs does not end")
+	assert(not seen[k], "key "..tostring(k).." seen twice")
+	seen[k] = v
+end
+assert(count == 3 and seen[1] == 1 and seen[2] == 2 and seen[3] == 7, "pairs gives the array part once")
+
+local k, n = next(t), 0
+while k ~= nil do
+	n = n + 1
+	assert(n <= 3, "next does not end")
+	k = next(t, k)
+end
+
+t[3] = nil
+assert(t[3] == nil, "removed key reads "..tostring(t[3]))
+assert(#t == 2, "length after removal is "..#t)
+
+-- numbers continuing the array part are collected from the hash part
+local u = table.numeric()
+u[1] = 1
+u[3] = 3
+u[4] = "x"
+u[2] = 2
+assert(u[3] == 3 and u[4] == "x", "collected up to the first non-number")
+u[4] = 4
+assert(#u == 4 and u[4] == 4, "non-number replaced by a number")
+local keys = 0
+for k in pairs(u) do keys = keys + 1 end
+assert(keys == 4, "pairs over collected keys gives "..keys)
@@ -0,0 +1,120 @@
+-- string.find, match, gmatch and gsub, with patterns compiled or left to the interpreter,
+-- must give the same results as the C library
+
+local function same(name, got, ...)
+	local want = {...}
+	for i=1,math.max(#got, #want) do
+		assert(got[i] == want[i], name..": result "..i.." is "..tostring(got[i]).." instead of "..tostring(want[i]))
+	end
+end
+local function find(s, p, init, plain) return {string.find(s, p, init, plain)} end
+local function match(s, p, init) return {string.match(s, p, init)} end
+
+-- plain and literal
+same("literal", find("hello world", "o w"), 5, 7)
+same("literal missing", find("hello world", "ow"))
+same("plain special", find("a.b*c", ".b*", 1, true), 2, 4)
+same("init", find("abcabc", "bc", 3), 5, 6)
+same("negative init", find("abcabc", "a", -3), 4, 4)
+same("empty pattern", find("abc", ""), 1, 0)
+same("init past the end", find("abc", "", 10), 4, 3)
+
+-- anchors
+same("anchored", find("aaa", "^a+"), 1, 3)
+same("anchored fails", find("baaa", "^a+"))
+same("anchored init", find("baaa", "^a+", 2), 2, 4)
+same("end anchor", match("hello world", "%a+$"), "world")
+same("dollar inside", match("a$b", "a$b"), "a$b")
+same("both anchors", match("  x  ", "^%s*(.-)%s*$"), "x")
+
+-- classes and quantifiers
+same("digits", match("abc 123 def", "%d+"), "123")
+same("set", match("key = value", "([%w_]+)%s*=%s*([%w_]+)"), "key", "value")
+same("negated set", match("a,b;c", "[^,;]+$"), "c")
+same("range", match("xyz09", "[0-9]+"), "09")
+same("lazy", match("<a><b>", "<(.-)>"), "a")
+same("greedy", match("<a><b>", "<(.*)>"), "a><b")
+same("optional", match("color colour", "colou?r", 2), "colour")
+same("class in set", match("a1_B", "[%a_]+"), "a")
+same("escaped", match("1+1=2", "%d%+%d"), "1+1")
+same("dot", match("\0\n", "^..$"), "\0\n")
+
+-- captures
+same("captures", match("2012-07-23", "(%d+)-(%d+)-(%d+)"), "2012", "07", "23")
+same("nested captures", match("abcd", "((a)(b)c)"), "abc", "a", "b")
+same("find captures", find("x = 10", "(%w+) = (%d+)"), 1, 6, "x", "10")
+same("back reference", match("say 'hi' there", "(['\"])(.-)%1"), "'", "hi")
+same("back reference fails", match("'hi\"", "(['\"])(.-)%1"))
+
+-- position captures
+same("position", match("hello", "()ll()"), 3, 5)
+same("position only", find("abc", "()b"), 2, 2, 2)
+same("empty position", match("abc", "()"), 1)
+
+-- %b balanced
+same("balanced", match("f(a(b)c) d", "%b()"), "(a(b)c)")
+same("balanced unclosed", match("f(a(b c", "%b()"))
+same("balanced same", match("'a' 'b'", "%b''"), "'a'")
+same("balanced find", find("x[[y]]z", "%b[]"), 2, 6)
+
+-- %f frontier
+same("frontier", match("THE (quick) fox", "%f[%a]%a+", 5), "quick")
+same("frontier words", {string.gsub("the cat the end", "%f[%w]the%f[%W]", "a")}, "a cat a end", 2)
+same("frontier at start", find("abc", "%f[%a]"), 1, 0)
+same("frontier at end", find("abc", "%f[%z]"), 4, 3)
+
+-- gmatch
+local words = {}
+for w in string.gmatch("one two  three", "%a+") do words[#words+1] = w end
+same("gmatch words", words, "one", "two", "three")
+local pairs_ = {}
+for k, v in string.gmatch("a=1, b=2, c=3", "(%w+)=(%w+)") do pairs_[#pairs_+1] = k..v end
+same("gmatch captures", pairs_, "a1", "b2", "c3")
+local empties = 0
+for e in string.gmatch("abc", "x*") do empties = empties + 1; assert(e == "") end
+assert(empties == 4, "gmatch empty matches "..empties)
+local literal = 0
+for a in string.gmatch("aaa", "^a") do literal = literal + 1 end
+assert(literal == 0, "gmatch anchored "..literal)
+for a in string.gmatch("^a^a", "^a") do literal = literal + 1; assert(a == "^a") end
+assert(literal == 2, "gmatch matches ^ literally "..literal)
+
+-- gsub with strings, tables and functions
+same("gsub string", {string.gsub("hello world", "o", "0")}, "hell0 w0rld", 2)
+same("gsub limit", {string.gsub("hello world", "o", "0", 1)}, "hell0 world", 1)
+same("gsub captures", {string.gsub("hello world", "(%w+)", "<%1>")}, "<hello> <world>", 2)
+same("gsub whole", {string.gsub("abc", "%w", "%0%0")}, "aabbcc", 3)
+same("gsub percent", {string.gsub("50", "%d+", "%0%%")}, "50%", 1)
+same("gsub swap", {string.gsub("hello world", "(%w+) (%w+)", "%2 %1")}, "world hello", 1)
+same("gsub table", {string.gsub("$a and $b", "%$(%w+)", {a="x"})}, "x and $b", 2)
+same("gsub function", {string.gsub("1 2 3", "%d", function(d) return d*2 end)}, "2 4 6", 3)
+same("gsub function nil", {string.gsub("abc", "%w", function(c) if c == "b" then return "B" end end)}, "aBc", 3)
+same("gsub function false", {string.gsub("abc", "b", function() return false end)}, "abc", 1)
+same("gsub empty", {string.gsub("abc", "", "-")}, "-a-b-c-", 4)
+same("gsub anchored", {string.gsub("aaa", "^a", "b")}, "baa", 1)
+same("gsub position", {string.gsub("abc", "()", "%1")}, "1a2b3c4", 4)
+same("gsub trim", {string.gsub("  both  ", "^%s*(.-)%s*$", "%1")}, "both", 1)
+
+-- errors are raised only when matching reaches them, as in C
+assert(not pcall(string.find, "a", "%"), "malformed pattern ending with %")
+for _, p in ipairs({"[a", "[", "[^", "[%"}) do
+	local ok, e = pcall(string.find, "a", p)
+	assert(not ok and e:find("missing ]", 1, true), p.." is missing ]: "..tostring(e))
+end
+assert(not pcall(string.find, "a", "(a"), "unfinished capture")
+assert(not pcall(string.find, "a", "%f"), "missing [ after %f")
+assert(not pcall(string.gsub, "a", "a", "%2"), "invalid capture index in replacement")
+same("error not reached", find("b", "a%"))
+
+-- substrings as subjects and patterns
+local long = ("--key=value--"):sub(3, -3)
+same("substring subject", match(long, "^(%w+)=(%w+)$"), "key", "value")
+same("substring pattern", match("x = 1", ("((%w+))"):sub(2, -2)), "x")
+
+-- more patterns than the cache holds, twice over
+for round=1,2 do
+	for i=1,600 do
+		local p = "^(%d+)x"..i.."$"
+		same("many patterns "..i, match("7x"..i, p), "7")
+	end
+end
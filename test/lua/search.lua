@@ -0,0 +1,30 @@
+-- plain searches must give positions in the string searched, 
+-- also when it is a substring sharing the bytes of a larger one
+
+local s = "xxabcab"
+assert(string.find(s, "ab", 1, true) == 3, "first plain match")
+assert(string.find(s, "ab", 4, true) == 6, "plain match after init")
+assert(string.find(s, "zz", 1, true) == nil, "no plain match")
+
+local sub = ("--" .. s):sub(3)
+assert(sub == s, "substring")
+assert(string.find(sub, "ab", 1, true) == 3, "first plain match in substring")
+assert(string.find(sub, "ab", 4, true) == 6, "plain match after init in substring")
+assert(string.find(sub, "ab", 7, true) == nil, "no plain match past the last")
+local a, b = string.find(sub, "cab", 1, true)
+assert(a == 5 and b == 7, "plain match at the end of a substring")
+
+-- module names use the last dot to find the package;
+-- module() replaces the environment, so keep what is needed in locals
+local assert, module = assert, module
+module("foo.bar.baz")
+assert(_NAME == "foo.bar.baz", "module name is ".._NAME)
+assert(_PACKAGE == "foo.bar.", "module package is ".._PACKAGE)
+
+local name = ("xx.one.two"):sub(4)
+module(name)
+assert(_NAME == "one.two", "substring module name is ".._NAME)
+assert(_PACKAGE == "one.", "substring module package is ".._PACKAGE)
+
+module("single")
+assert(_PACKAGE == "", "undotted module package is ".._PACKAGE)
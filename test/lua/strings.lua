@@ -0,0 +1,45 @@
+-- strings built by concatenation may be appended to in place,
+-- which must never change another string sharing the same bytes
+
+local base = string.rep("b", 40)
+local a = base .. "x"
+local b = base .. "y"
+local c = a .. "1"
+local d = a .. "2"
+assert(a == base.."x" and b == base.."y", "append from a shared prefix")
+assert(c == base.."x1" and d == base.."x2", "append from an appended string")
+assert(#c == 42 and c:sub(-2) == "x1", "length of an appended string")
+
+-- building piece by piece, keeping every intermediate string
+local s, all = "", {}
+for i=1,2000 do
+	s = s .. (i % 10)
+	all[i] = s
+end
+for i=1,2000,97 do
+	assert(#all[i] == i, "intermediate "..i.." has length "..#all[i])
+	assert(all[i]:sub(-1) == tostring(i % 10), "intermediate "..i.." ends with "..all[i]:sub(-1))
+	assert(all[2000]:sub(1, i) == all[i], "intermediate "..i.." is a prefix")
+end
+
+-- branching off an intermediate string after it was appended to
+local t = all[1000] .. "!"
+assert(#t == 1001 and t:sub(-1) == "!" and all[1001]:sub(-1) == "1", "branch off an intermediate")
+
+-- small substrings of a large string, stored in tables as values and keys
+local text = string.rep("0123456789", 500)
+local words, keys = {}, {}
+for i=1,50 do
+	local w = text:sub(i*10+1, i*10+5)
+	words[i] = w
+	keys[w .. i] = i
+	rawset(words, -i, w)
+end
+for i=1,50 do
+	assert(words[i] == "01234" and words[-i] == "01234", "stored substring "..i)
+	assert(keys["01234"..i] == i, "substring key "..i)
+end
+
+-- a substring appended to is copied, not written over its source
+local u = text:sub(1, 5) .. "x"
+assert(u == "01234x" and text:sub(6, 6) == "5", "append to a substring")